@@ -36,6 +36,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -53,6 +54,7 @@ import com.clustercontrol.agent.filecheck.FileCheckManager;
 import com.clustercontrol.agent.job.RunHistoryUtil;
 import com.clustercontrol.agent.log.LogfileMonitorManager;
 import com.clustercontrol.agent.util.AgentProperties;
+import com.clustercontrol.agent.util.MonitorResultAggregator;
 import com.clustercontrol.agent.util.PropertiesFileUtil;
 import com.clustercontrol.bean.PriorityConstant;
 import com.clustercontrol.fault.HinemosUnknown;
@@ -86,7 +88,15 @@ public class Agent {
 	/** log4j設定ファイル再読み込み間隔 */
 	private long m_reconfigLog4jInterval = 600;
 
-	private static AgentInfo agentInfo = new AgentInfo();
+	/**
+	 * エージェント情報のスナップショット。
+	 * 公開した後は変更せず、変更がある場合は新しいインスタンスに置き換える(起動時刻の設定を除く)。
+	 */
+	private static volatile AgentInfo agentInfo = new AgentInfo();
+	/** agentInfoをOSの情報から作成済みかどうか */
+	private static volatile boolean agentInfoInitialized = false;
+	/** エージェント情報(IPアドレスなど)の再取得間隔(秒) */
+	private long m_agentInfoRefreshInterval = 10;
 
 	public static final Integer DEFAULT_CONNECT_TIMEOUT = 10000;
 	public static final Integer DEFAULT_REQUEST_TIMEOUT = 60000;
@@ -578,6 +588,27 @@ public class Agent {
 		m_log4jScheduler.scheduleWithFixedDelay(new ReloadLog4jTask(),
 				m_reconfigLog4jInterval,m_reconfigLog4jInterval,TimeUnit.SECONDS);
 
+		// エージェント情報(IPアドレスの変更)の再取得タスク
+		String refreshInterval = AgentProperties.getProperty("agentinfo.refresh.interval", "10");
+		try {
+			m_agentInfoRefreshInterval = Long.parseLong(refreshInterval);
+		} catch (NumberFormatException e) {
+			m_log.warn("exec() : agentinfo.refresh.interval", e);
+		}
+		m_log.info("agentinfo.refresh.interval = " + m_agentInfoRefreshInterval);
+		if (m_agentInfoRefreshInterval > 0) {
+			m_log4jScheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refreshAgentInfo();
+					} catch (Throwable t) {
+						m_log.warn("refreshAgentInfo : " + t.getMessage(), t);
+					}
+				}
+			}, m_agentInfoRefreshInterval, m_agentInfoRefreshInterval, TimeUnit.SECONDS);
+		}
+
 		// ログファイル読み込みスレッド開始
 		LogfileMonitorManager.start();
 
@@ -594,6 +625,9 @@ public class Agent {
 		m_log.info("terminate() start");
 		RunHistoryUtil.logHistory();
 
+		// 集約中の監視結果を送信キューに渡す
+		MonitorResultAggregator.flushAll();
+
 		try {
 			// deleteAgentを行った直後に別スレッドのgetTopicと競合するとエージェントが重複されたと認識されるため、
 			// deleteAgentとgetTopicを排他する
@@ -793,20 +827,50 @@ public class Agent {
 		}
 	}
 
+	/**
+	 * エージェント情報を返す。<BR>
+	 * 
+	 * OSへの問い合わせは行わず、refreshAgentInfo()で作成したスナップショットを返す。
+	 * 返したインスタンスは変更しないこと。
+	 */
 	public static AgentInfo getAgentInfo() {
+		if (!agentInfoInitialized) {
+			refreshAgentInfo();
+		}
+		AgentInfo info = agentInfo;
+		if (info.getInterval() != ReceiveTopic.getTopicInterval() && !ReceiveTopic.isReloadFlg()) {
+			// トピックの受信間隔のみ変わった場合は、OSに問い合わせずに作り直す
+			synchronized (Agent.class) {
+				info = agentInfo;
+				if (info.getInterval() != ReceiveTopic.getTopicInterval()) {
+					info = createAgentInfo(info.getFacilityId(), info.getHostname(), info.getIpAddress());
+					agentInfo = info;
+				}
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * OSからホスト名、IPアドレスを取得して、エージェント情報を作り直す。<BR>
+	 * 
+	 * IPアドレスが変わった場合は、ReceiveTopicに設定の再取得を依頼する。
+	 * 定期的に呼び出すため、監視結果の送信などでは呼び出さないこと。
+	 */
+	public static synchronized void refreshAgentInfo() {
 		// IPアドレスが変更されて設定の再取得中はagentInfoを書き換えない
 		if (ReceiveTopic.isReloadFlg()) {
-			return agentInfo;
+			return;
 		}
 		
-		agentInfo.setFacilityId(AgentProperties.getProperty("facilityId"));
+		AgentInfo current = agentInfo;
+		String facilityId = AgentProperties.getProperty("facilityId");
 
 		// OS情報(識別したホスト名、IPアドレス)
 		try {
 			// ホスト名取得
 			String hostname = System.getProperty("hostname");
 			m_log.debug("hostname=[" + hostname + "]");
-			agentInfo.setHostname(hostname);
 
 			// IPアドレス取得
 			Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
@@ -826,31 +890,46 @@ public class Agent {
 					}
 				}
 			}
-			if (agentInfo.getIpAddress().size() != newIpAddressList.size()) {
-				m_log.info("ipAddress change : " + agentInfo.getIpAddress().size() +
+			boolean ipAddressChanged = false;
+			if (current.getIpAddress().size() != newIpAddressList.size()) {
+				m_log.info("ipAddress change : " + current.getIpAddress().size() +
 						"," + newIpAddressList.size());
-				agentInfo.getIpAddress().clear();
-				agentInfo.getIpAddress().addAll(newIpAddressList);
-				ReceiveTopic.setReloadFlg(true);
+				ipAddressChanged = true;
 			} else {
-				if (!agentInfo.getIpAddress().containsAll(newIpAddressList)) {
+				if (!current.getIpAddress().containsAll(newIpAddressList)) {
 					m_log.info("ipAddress change");
-					agentInfo.getIpAddress().clear();
-					agentInfo.getIpAddress().addAll(newIpAddressList);
-					ReceiveTopic.setReloadFlg(true);
+					ipAddressChanged = true;
 				}
 			}
+			agentInfo = createAgentInfo(facilityId, hostname,
+					ipAddressChanged ? newIpAddressList : current.getIpAddress());
+			if (ipAddressChanged) {
+				ReceiveTopic.setReloadFlg(true);
+			}
 		} catch (SocketException e) {
 			m_log.error(e,e);
+			agentInfo = createAgentInfo(facilityId, current.getHostname(), current.getIpAddress());
 		}
-		agentInfo.setInterval(ReceiveTopic.getTopicInterval());
+		agentInfoInitialized = true;
 
 		m_log.debug(getAgentStr());
+	}
 
-		return agentInfo;
+	/**
+	 * 新しいエージェント情報を作成する(起動時刻は引き継ぐ)
+	 */
+	private static AgentInfo createAgentInfo(String facilityId, String hostname, List<String> ipAddressList) {
+		AgentInfo info = new AgentInfo();
+		info.setFacilityId(facilityId);
+		info.setHostname(hostname);
+		info.getIpAddress().addAll(ipAddressList);
+		info.setStartupTime(agentInfo.getStartupTime());
+		info.setInterval(ReceiveTopic.getTopicInterval());
+		return info;
 	}
 
 	public static String getAgentStr() {
+		AgentInfo agentInfo = Agent.agentInfo;
 		String str = "agentInfo=";
 		if (agentInfo.getFacilityId() != null) {
 			str += "[facilityID=" + agentInfo.getFacilityId() + "]";
@@ -16,8 +16,8 @@ import org.apache.commons.logging.LogFactory;
 import com.clustercontrol.fault.HinemosUnknown;
 import com.clustercontrol.agent.EndpointManager.EndpointSetting;
 import com.clustercontrol.agent.util.AgentProperties;
+import com.clustercontrol.agent.util.XMLSanitizer;
 import com.clustercontrol.util.StringBinder;
-import com.clustercontrol.util.XMLUtil;
 import com.clustercontrol.ws.agent.AgentEndpoint;
 import com.clustercontrol.ws.agent.AgentOutputBasicInfo;
 import com.clustercontrol.ws.agent.CustomInvalid_Exception;
@@ -31,7 +31,6 @@ import com.clustercontrol.ws.agent.JobMasterNotFound_Exception;
 import com.clustercontrol.ws.agent.JobSessionDuplicate_Exception;
 import com.clustercontrol.ws.agent.MessageInfo;
 import com.clustercontrol.ws.agent.MonitorNotFound_Exception;
-import com.clustercontrol.ws.agent.OutputBasicInfo;
 import com.clustercontrol.ws.agent.WinEventResultDTO;
 import com.clustercontrol.ws.cloud.CloudCommonEndpoint;
 import com.clustercontrol.ws.jobmanagement.JobFileCheck;
@@ -60,19 +59,13 @@ public class AgentEndPointWrapper {
 		counterMap = new ConcurrentHashMap<String, Long>();
 	}
 	
-	/** Invalidな文字を置換する場合の置換文字のキー */
-	private static final String MESSAGE_REPLACE_METHOD_KEY = "common.invalid.char.replace";
-	/** Invalidな文字を置換する場合の置換文字のキー */
-	private static final String MESSAGE_REPLACE_CHAR_KEY = "common.invalid.char.replace.to";
-
 	static {
-		boolean invalidCharReplace = Boolean.parseBoolean(AgentProperties.getProperty(MESSAGE_REPLACE_METHOD_KEY, "false"));
-		XMLUtil.setReplace(invalidCharReplace);
+		// XMLUtilの設定はXMLSanitizerで行う
+		boolean invalidCharReplace = Boolean.parseBoolean(AgentProperties.getProperty(XMLSanitizer.MESSAGE_REPLACE_METHOD_KEY, "false"));
 		StringBinder.setReplace(invalidCharReplace);
 
-		String replaceCharString = AgentProperties.getProperty(MESSAGE_REPLACE_CHAR_KEY, " ");
+		String replaceCharString = AgentProperties.getProperty(XMLSanitizer.MESSAGE_REPLACE_CHAR_KEY, " ");
 		if(replaceCharString != null){
-			XMLUtil.setReplaceChar(replaceCharString);
 			StringBinder.setReplaceChar(replaceCharString);
 		}
 	}
@@ -84,16 +77,11 @@ public class AgentEndPointWrapper {
 		for (EndpointSetting endpointSetting : EndpointManager.getAgentEndpoint()) {
 			try {
 				AgentEndpoint endpoint = (AgentEndpoint) endpointSetting.getEndpoint();
-
-				// Ignore Invalid XML Chars
-				resultInfo.setMessage(XMLUtil.ignoreInvalidString(resultInfo.getMessage()));
-				resultInfo.setErrorMessage(XMLUtil.ignoreInvalidString(resultInfo.getErrorMessage()));
-
 				return endpoint.jobResult(resultInfo);
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("jobResult " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -107,18 +95,12 @@ public class AgentEndPointWrapper {
 		for (EndpointSetting endpointSetting : EndpointManager.getAgentEndpoint()) {
 			try {
 				AgentEndpoint endpoint = (AgentEndpoint) endpointSetting.getEndpoint();
-
-				// Ignore Invalid XML Chars
-				OutputBasicInfo outputInfo = info.getOutputBasicInfo();
-				outputInfo.setMessage(XMLUtil.ignoreInvalidString(outputInfo.getMessage()));
-				outputInfo.setMessageOrg(XMLUtil.ignoreInvalidString(outputInfo.getMessageOrg()));
-
 				endpoint.sendMessage(info);
 				return;
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -147,7 +129,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -169,7 +151,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("communication failure to manager...", e);
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -181,21 +163,19 @@ public class AgentEndPointWrapper {
 		// Local Variables
 		WebServiceException wse = null;
 
+		// Ignore Invalid XML Chars
+		XMLSanitizer.sanitize(result);
+
 		// MAIN
 		for (EndpointSetting endpointSetting : EndpointManager.getAgentEndpoint()) {
 			try {
 				AgentEndpoint endpoint = (AgentEndpoint) endpointSetting.getEndpoint();
-
-				// Ignore Invalid XML Chars
-				result.setStderr(XMLUtil.ignoreInvalidString(result.getStderr()));
-				result.setStdout(XMLUtil.ignoreInvalidString(result.getStdout()));
-
 				endpoint.putCommandResultDTO(result);
 				return;
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -210,19 +190,12 @@ public class AgentEndPointWrapper {
 		for (EndpointSetting endpointSetting : EndpointManager.getAgentEndpoint()) {
 			try {
 				AgentEndpoint endpoint = (AgentEndpoint) endpointSetting.getEndpoint();
-		
-				// Ignore Invalid XML Chars
-				for (CommandResultDTO result : resultList) {
-					result.setStderr(XMLUtil.ignoreInvalidString(result.getStderr()));
-					result.setStdout(XMLUtil.ignoreInvalidString(result.getStdout()));
-				}
-		
 				endpoint.forwardCustomResult(resultList);
 				return;
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -238,19 +211,12 @@ public class AgentEndPointWrapper {
 		for (EndpointSetting endpointSetting : EndpointManager.getAgentEndpoint()) {
 			try {
 				AgentEndpoint endpoint = (AgentEndpoint) endpointSetting.getEndpoint();
-		
-				// Ignore Invalid XML Chars
-				for (LogfileResultDTO result : resultList) {
-					result.setMessage(XMLUtil.ignoreInvalidString(result.getMessage()));
-					result.getMsgInfo().setMessage(XMLUtil.ignoreInvalidString(result.getMsgInfo().getMessage()));
-				}
-		
 				endpoint.forwardLogfileResult(resultList, Agent.getAgentInfo());
 				return;
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -265,19 +231,12 @@ public class AgentEndPointWrapper {
 		for (EndpointSetting endpointSetting : EndpointManager.getAgentEndpoint()) {
 			try {
 				AgentEndpoint endpoint = (AgentEndpoint) endpointSetting.getEndpoint();
-		
-				// Ignore Invalid XML Chars
-				for (WinEventResultDTO result : resultList) {
-					result.setMessage(XMLUtil.ignoreInvalidString(result.getMessage()));
-					result.getMsgInfo().setMessage(XMLUtil.ignoreInvalidString(result.getMsgInfo().getMessage()));
-				}
-		
 				endpoint.forwardWinEventResult(resultList, Agent.getAgentInfo());
 				return;
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -294,7 +253,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -311,7 +270,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -328,7 +287,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -345,7 +304,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -363,7 +322,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -379,7 +338,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -401,7 +360,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -424,7 +383,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -435,21 +394,21 @@ public class AgentEndPointWrapper {
 					throws HinemosUnknown_Exception, InvalidRole_Exception,
 					InvalidUserPass_Exception {
 		WebServiceException wse = null;
+
+		// Ignore Invalid XML Chars
+		message = XMLSanitizer.sanitize(message);
+		logmsg.setMessage(XMLSanitizer.sanitize(logmsg.getMessage()));
+
 		for (EndpointSetting endpointSetting : EndpointManager.getAgentEndpoint()) {
 			try {
 				AgentEndpoint endpoint = (AgentEndpoint) endpointSetting.getEndpoint();
-
-				// Ignore Invalid XML Chars
-				message = XMLUtil.ignoreInvalidString(message);
-				logmsg.setMessage(XMLUtil.ignoreInvalidString(logmsg.getMessage()));
-
 				endpoint.sendNotify(message, logmsg, monitorInfo, rule, Agent.getAgentInfo());
 
 				return;
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
@@ -469,7 +428,7 @@ public class AgentEndPointWrapper {
 			} catch (WebServiceException e) {
 				wse = e;
 				m_log.info("WebServiceException " + e.getMessage());
-				EndpointManager.changeEndpoint();
+				EndpointManager.changeEndpoint(endpointSetting, e);
 			}
 		}
 		throw wse;
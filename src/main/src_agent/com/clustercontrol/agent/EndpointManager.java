@@ -1,17 +1,38 @@
 package com.clustercontrol.agent;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.namespace.QName;
 import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.handler.Handler;
+import javax.xml.ws.handler.MessageContext;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.clustercontrol.agent.util.AgentProperties;
+import com.clustercontrol.ws.agent.AgentEndpoint;
 import com.clustercontrol.ws.agent.AgentEndpointService;
+import com.clustercontrol.ws.cloud.CloudCommonEndpoint;
 import com.clustercontrol.ws.cloud.CloudCommonEndpointService;
 
 /**
@@ -19,7 +40,24 @@ import com.clustercontrol.ws.cloud.CloudCommonEndpointService;
  * HAのような複数マネージャ対応のため、このクラスを実装する。
  * 
  * Hinemosマネージャと通信できない場合は、WebServiceExceptionがthrowされる。
- * WebServiceExeptionが出力された場合は、もう一台のマネージャと通信する。
+ * WebServiceExeptionが出力された場合は、もう一台のマネージャと通信する。<BR>
+ * 
+ * soap.gzip.request、soap.gzip.responseでHTTPのgzip圧縮を、
+ * soap.fastinfosetでFast Infosetの使用(pessimistic : 応答がFast Infosetの場合のみ以降使用する、optimistic : 最初から使用する)を設定する。
+ * マネージャがHTTPステータス415(Unsupported Media Type)を返した場合は、そのマネージャでは圧縮とFast Infosetを使用しない。<BR>
+ * 
+ * JAX-WSのポートはマネージャごとにsoap.port.pool.sizeまでプールする。
+ * getEndpoint()が返すオブジェクトは、メソッドの呼び出しごとにプールからポートを借りて呼び出し、呼び出し後に返却する。
+ * そのため、複数のスレッドから同時に呼び出した場合は、別々のポート(HTTP接続)で並行して通信する。<BR>
+ * 
+ * マネージャごとにサーキットブレーカを持つ。endpoint.breaker.failures回続けて通信に失敗したマネージャは遮断し、
+ * 使用可能な順番の最後に回す。遮断したマネージャにはバックグラウンドでTCP接続を試み、接続できた場合に遮断を解除する。
+ * TCP接続はマネージャに到達できることのみを確認し、Webサービスが応答することは確認しないため、
+ * 解除後は1回の失敗で再び遮断する(次に成功するまで)。
+ * 遮断していないマネージャは、応答時間の移動平均が短い順に使用する。<BR>
+ * 
+ * WSDLはAgentWS.jarに同梱したもの(META-INF/wsdl)を使用し、マネージャからは取得しない。
+ * soap.wsdl.local=falseの場合、または同梱したWSDLがない場合は、従来通りマネージャから取得する。
  */
 public class EndpointManager {
 
@@ -50,13 +88,27 @@ public class EndpointManager {
 		}
 
 		private ArrayList<EndpointSetting> getList(String key) {
-			ArrayList<EndpointSetting> list = new ArrayList<EndpointSetting>();
-			list.add(lastSuccessEndpoint.get(key));
+			ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+			candidates.add(new Candidate(lastSuccessEndpoint.get(key)));
 			for (HashMap<String, EndpointSetting> endpoint : endpointList) {
 				if (!endpoint.equals(lastSuccessEndpoint)) {
-					list.add(endpoint.get(key));
+					candidates.add(new Candidate(endpoint.get(key)));
 				}
 			}
+			// 遮断していないものを応答時間の短い順に並べる(同じ場合はローテートした順番)
+			Collections.sort(candidates);
+			ArrayList<EndpointSetting> list = new ArrayList<EndpointSetting>();
+			for (Candidate candidate : candidates) {
+				list.add(candidate.setting);
+			}
+			return list;
+		}
+
+		private ArrayList<ManagerStatus> getStatusList() {
+			ArrayList<ManagerStatus> list = new ArrayList<ManagerStatus>();
+			for (HashMap<String, EndpointSetting> endpoint : endpointList) {
+				list.add(endpoint.get(AGENT).status);
+			}
 			return list;
 		}
 
@@ -112,55 +164,390 @@ public class EndpointManager {
 		}
 	}
 
+	/**
+	 * 並べ替えの間に状態が変わらないよう、並べ替える前に取得しておく
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		private final EndpointSetting setting;
+		private final boolean open;
+		private final double latency;
+
+		private Candidate(EndpointSetting setting) {
+			this.setting = setting;
+			this.open = setting.status.isOpen();
+			this.latency = setting.status.getLatency();
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			if (open != o.open) {
+				return open ? 1 : -1;
+			}
+			// 応答時間を計測していないマネージャは一度使用して計測する
+			return Double.compare(Math.max(latency, 0), Math.max(o.latency, 0));
+		}
+	}
+
+	/**
+	 * マネージャごとの通信の状態(サーキットブレーカと統計)
+	 */
+	private static class ManagerStatus {
+		private final String urlPrefix;
+
+		private int consecutiveFailures = 0;
+		private boolean open = false;
+		private long openedAt = 0;
+
+		private long successCount = 0;
+		private long failureCount = 0;
+		/** 応答時間の指数移動平均(ms)。計測していない場合は-1 */
+		private double latency = -1;
+		private double lastLatency = -1;
+
+		private ManagerStatus(String urlPrefix) {
+			this.urlPrefix = urlPrefix;
+		}
+
+		private synchronized void recordSuccess(long nanos) {
+			double msec = nanos / 1000000.0;
+			successCount++;
+			lastLatency = msec;
+			latency = latency < 0 ? msec : latency + LATENCY_ALPHA * (msec - latency);
+			consecutiveFailures = 0;
+			if (open) {
+				open = false;
+				m_log.info("recordSuccess() : close circuit breaker. " + urlPrefix);
+			}
+		}
+
+		private synchronized void recordFailure() {
+			failureCount++;
+			consecutiveFailures++;
+			if (consecutiveFailures >= m_breakerFailures) {
+				if (!open) {
+					m_log.warn("recordFailure() : open circuit breaker. " + urlPrefix
+							+ ", consecutive failures=" + consecutiveFailures);
+				}
+				open = true;
+				openedAt = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * 遮断しているかどうか。
+		 * 接続を確認できなくても、endpoint.breaker.open.msecを過ぎた場合は再び使用する。
+		 */
+		private synchronized boolean isOpen() {
+			return open && System.currentTimeMillis() - openedAt < m_breakerOpenMsec;
+		}
+
+		private synchronized double getLatency() {
+			return latency;
+		}
+
+		/**
+		 * 遮断している場合にTCP接続を試み、接続できた場合は遮断を解除する。
+		 * Webサービスの応答は確認していないため、次の呼び出しが失敗した場合はすぐに遮断し直す。
+		 */
+		private void probe() {
+			synchronized (this) {
+				if (!open) {
+					return;
+				}
+			}
+			Socket socket = new Socket();
+			try {
+				URL url = new URL(urlPrefix);
+				int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+				socket.connect(new InetSocketAddress(url.getHost(), port), m_httpConnectTimeout);
+			} catch (Exception e) {
+				m_log.debug("probe() : " + urlPrefix + ", " + e.getMessage());
+				return;
+			} finally {
+				try {
+					socket.close();
+				} catch (Exception e) {
+					// 何もしない
+				}
+			}
+			synchronized (this) {
+				if (open) {
+					open = false;
+					consecutiveFailures = Math.max(0, m_breakerFailures - 1);
+					m_log.info("probe() : close circuit breaker (reachable). " + urlPrefix);
+				}
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return urlPrefix
+					+ " : state=" + (isOpen() ? "open" : "closed")
+					+ ", success=" + successCount
+					+ ", failure=" + failureCount
+					+ ", latency=" + String.format("%.1f", latency) + "ms"
+					+ ", last=" + String.format("%.1f", lastLatency) + "ms";
+		}
+	}
+
 	public static class EndpointSetting {
 		private String key;
 		private String urlPrefix;
 		private Object endpoint;
+		private final ManagerStatus status;
 		private String wsdlSuffix = "?wsdl";
 
-		private EndpointSetting(String key, String urlPrefix) {
+		// マネージャごとに、415を返した場合は無効にする
+		private volatile boolean gzipRequest = m_gzipRequest;
+		private volatile boolean gzipResponse = m_gzipResponse;
+		private volatile String fastInfoset = m_fastInfoset;
+
+		// ポートのプール(以下はthisで保護する)
+		private Service service;
+		/** serviceをエージェントに同梱したWSDLから作成した場合はtrue */
+		private boolean serviceLocal = false;
+		private final LinkedBlockingDeque<PooledPort> idlePorts = new LinkedBlockingDeque<PooledPort>();
+		private int createdPorts = 0;
+		/** ログアウトなどでプールを破棄するたびに増やす(破棄前に借りたポートは返却時に捨てる) */
+		private int generation = 0;
+
+		private EndpointSetting(String key, String urlPrefix, ManagerStatus status) {
 			this.key = key;
 			this.urlPrefix = urlPrefix;
+			this.status = status;
 		}
 
 		private void logout() {
-			endpoint = null;
+			clearPorts(true);
+		}
+
+		/**
+		 * プールしているポートを破棄する
+		 * @param clearService WSDLから読み込み直す場合はtrue
+		 */
+		private synchronized void clearPorts(boolean clearService) {
+			generation++;
+			idlePorts.clear();
+			createdPorts = 0;
+			// 同梱したWSDLはマネージャに依存しないため、作り直さない
+			if (clearService && !serviceLocal) {
+				service = null;
+			}
+		}
+
+		/**
+		 * 通信に失敗した場合に呼び出す。
+		 * HTTPステータス415の場合は、圧縮とFast Infosetを無効にしてポートを作り直す。
+		 */
+		private void onFailure(WebServiceException e) {
+			Throwable cause = getUnsupportedMediaType(e);
+			if (cause == null) {
+				return;
+			}
+			if (!gzipRequest && !gzipResponse && FAST_INFOSET_NONE.equals(fastInfoset)) {
+				return;
+			}
+			m_log.warn("onFailure() : " + urlPrefix + key + " does not support " + getEncodingString()
+					+ ". disable compression and fastinfoset. reason=" + cause.getClass().getName() + ": " + cause.getMessage());
+			gzipRequest = false;
+			gzipResponse = false;
+			fastInfoset = FAST_INFOSET_NONE;
+			clearPorts(false);
 		}
 
-		public Object getEndpoint() {
+		/**
+		 * HTTPステータス415(Unsupported Media Type)で失敗した場合は、その例外を返す。
+		 * JAX-WSのClientTransportException(RIとJDK同梱版でパッケージが異なるため、クラス名で判定する)のみ対象とし、
+		 * ステータスコードを取得できる場合はステータスコードで、取得できない場合はメッセージで判定する。
+		 */
+		private static Throwable getUnsupportedMediaType(Throwable e) {
+			for (Throwable t = e; t != null; t = t.getCause()) {
+				String name = t.getClass().getSimpleName();
+				if (!name.startsWith("ClientTransport")) {
+					continue;
+				}
+				try {
+					Method method = t.getClass().getMethod("getStatusCode");
+					Object code = method.invoke(t);
+					if (code instanceof Integer) {
+						return ((Integer) code).intValue() == HTTP_UNSUPPORTED_MEDIA_TYPE ? t : null;
+					}
+				} catch (NoSuchMethodException ex) {
+					// ステータスコードを持たない版
+				} catch (Exception ex) {
+					m_log.debug("getUnsupportedMediaType() : " + ex.getMessage());
+				}
+				String message = t.getMessage();
+				if (message != null && message.contains(HTTP_UNSUPPORTED_MEDIA_TYPE + ": Unsupported Media Type")) {
+					return t;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * 現在の圧縮、Fast Infosetの設定(ログ出力用)
+		 */
+		public String getEncodingString() {
+			return "gzip.request=" + gzipRequest + ", gzip.response=" + gzipResponse + ", fastinfoset=" + fastInfoset;
+		}
 
+		/**
+		 * Endpointを返す。
+		 * 返すオブジェクトはメソッドの呼び出しごとにプールのポートを使用するため、スレッド間で共有してよい。
+		 */
+		public synchronized Object getEndpoint() {
 			if (endpoint != null) {
 				return endpoint;
 			}
-			String tmpKey = null;
-			tmpKey = AGENT;
-			if (tmpKey.equals(key)) {
-				String urlStr = urlPrefix + tmpKey + wsdlSuffix;
-				AgentEndpointService tmpEndpointService = null;
+			Class<?> portClass = null;
+			if (AGENT.equals(key)) {
+				portClass = AgentEndpoint.class;
+			} else if (CLOUD_COMMON.equals(key)) {
+				portClass = CloudCommonEndpoint.class;
+			}
+			endpoint = Proxy.newProxyInstance(portClass.getClassLoader(), new Class<?>[] { portClass }, new PortInvocationHandler());
+			return endpoint;
+		}
+
+		/**
+		 * プールからポートを借りる。全てのポートが使用中で上限に達している場合は、返却されるまで待つ。
+		 */
+		private PooledPort borrowPort() throws InterruptedException {
+			while (true) {
+				synchronized (this) {
+					PooledPort pooled = idlePorts.pollFirst();
+					if (pooled != null) {
+						return pooled;
+					}
+					if (createdPorts < m_portPoolSize) {
+						pooled = new PooledPort(createPort(), generation);
+						createdPorts++;
+						m_log.debug("borrowPort() : create port " + urlPrefix + key + ", ports=" + createdPorts);
+						return pooled;
+					}
+				}
+				// 待っている間にプールが破棄された場合に作り直せるよう、一定時間ごとに確認する
+				PooledPort pooled = idlePorts.pollFirst(1, TimeUnit.SECONDS);
+				if (pooled != null) {
+					return pooled;
+				}
+			}
+		}
+
+		/**
+		 * ポートをプールに返却する(直前に使用したポートから使用する)
+		 */
+		private synchronized void returnPort(PooledPort pooled) {
+			if (pooled.generation != generation) {
+				return;
+			}
+			idlePorts.offerFirst(pooled);
+		}
+
+		/**
+		 * ポートを作成する(thisを取得して呼び出す)
+		 */
+		private Object createPort() {
+			String urlStr = urlPrefix + key + wsdlSuffix;
+			if (service == null) {
+				createService(urlStr);
+			}
+			Object port = null;
+			if (AGENT.equals(key)) {
+				port = ((AgentEndpointService) service).getAgentEndpointPort();
+			} else if (CLOUD_COMMON.equals(key)) {
+				port = ((CloudCommonEndpointService) service).getCloudCommonEndpointPort();
+			}
+			setBindingProvider(port, username, password, urlStr, this);
+			return port;
+		}
+
+		/**
+		 * Serviceを作成する(thisを取得して呼び出す)。
+		 * エージェントに同梱したWSDLがある場合はそれを使用し、ない場合はマネージャから取得する。
+		 * 接続先はsetBindingProviderで設定するため、どちらのWSDLでも同じ。
+		 */
+		private void createService(String urlStr) {
+			long start = System.currentTimeMillis();
+			URL wsdlUrl = null;
+			if (m_localWsdl) {
+				wsdlUrl = EndpointManager.class.getClassLoader().getResource(LOCAL_WSDL_DIR + key + ".wsdl");
+				if (wsdlUrl == null) {
+					m_log.info("createService() : local wsdl is not found. " + LOCAL_WSDL_DIR + key + ".wsdl");
+				}
+			}
+			serviceLocal = wsdlUrl != null;
+			try {
+				if (wsdlUrl == null) {
+					wsdlUrl = new URL(urlStr);
+				}
+			} catch (MalformedURLException e) {
+				m_log.warn("createService() : " + key + ", " + e.getMessage(), e);
+			}
+			if (AGENT.equals(key)) {
+				service = new AgentEndpointService(wsdlUrl,
+						new QName("http://agent.ws.clustercontrol.com", key));
+			} else if (CLOUD_COMMON.equals(key)) {
+				service = new CloudCommonEndpointService(wsdlUrl,
+						new QName("http://cloud.ws.clustercontrol.com", key));
+			}
+			m_log.info("createService() : " + key + ", wsdl=" + wsdlUrl
+					+ ", time=" + (System.currentTimeMillis() - start) + "ms");
+		}
+
+		/**
+		 * メソッドの呼び出しごとにプールのポートを借りて呼び出す
+		 */
+		private class PortInvocationHandler implements InvocationHandler {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					if ("equals".equals(method.getName())) {
+						return proxy == args[0];
+					} else if ("hashCode".equals(method.getName())) {
+						return System.identityHashCode(proxy);
+					}
+					return "Endpoint[" + urlPrefix + key + "]";
+				}
+
+				PooledPort pooled;
 				try {
-					tmpEndpointService = new AgentEndpointService(
-							new URL(urlStr),
-							new QName("http://agent.ws.clustercontrol.com", tmpKey));
-				} catch (MalformedURLException e) {
-					m_log.warn("getEndpoint():AccessEndpointService, " + e.getMessage(), e);
-				}
-				endpoint = tmpEndpointService.getAgentEndpointPort();
-				setBindingProvider(endpoint, username, password, urlStr);
-			}
-			tmpKey = CLOUD_COMMON;
-			if (tmpKey.equals(key)) {
-				String urlStr = urlPrefix + tmpKey + wsdlSuffix;
-				CloudCommonEndpointService tmpEndpointService = null;
+					pooled = borrowPort();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new WebServiceException("interrupted while waiting for port : " + urlPrefix + key, e);
+				}
+				long start = System.nanoTime();
 				try {
-					tmpEndpointService = new CloudCommonEndpointService(
-							new URL(urlStr), new QName("http://cloud.ws.clustercontrol.com", tmpKey));
-				} catch (MalformedURLException e) {
-					m_log.warn("getEndpoint() : CloudCommonEndpointService, " + e.getMessage(), e);
+					Object ret = method.invoke(pooled.port, args);
+					status.recordSuccess(System.nanoTime() - start);
+					return ret;
+				} catch (InvocationTargetException e) {
+					// 通信できずにWebServiceExceptionになった場合のみ失敗とする
+					if (e.getCause() instanceof WebServiceException) {
+						status.recordFailure();
+					} else {
+						status.recordSuccess(System.nanoTime() - start);
+					}
+					throw e.getCause();
+				} finally {
+					returnPort(pooled);
 				}
-				endpoint = tmpEndpointService.getCloudCommonEndpointPort();
-				setBindingProvider(endpoint, username, password, urlStr);
 			}
-			return endpoint;
+		}
+	}
+
+	/**
+	 * プールしているポートと、作成したときのプールの世代
+	 */
+	private static class PooledPort {
+		private final Object port;
+		private final int generation;
+
+		private PooledPort(Object port, int generation) {
+			this.port = port;
+			this.generation = generation;
 		}
 	}
 
@@ -169,6 +556,43 @@ public class EndpointManager {
 	private static int m_httpConnectTimeout = Agent.DEFAULT_CONNECT_TIMEOUT;
 	private static int m_httpRequestTimeout = Agent.DEFAULT_REQUEST_TIMEOUT;
 
+	private static final String FAST_INFOSET_NONE = "none";
+	private static final String FAST_INFOSET_PESSIMISTIC = "pessimistic";
+	private static final String FAST_INFOSET_OPTIMISTIC = "optimistic";
+
+	/** 圧縮、Fast Infosetに対応していないマネージャが返すHTTPステータス */
+	private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+
+	/** JAX-WS(JDK内蔵)のFast Infosetのネゴシエーションのプロパティ */
+	private static final String CONTENT_NEGOTIATION_PROPERTY = "com.sun.xml.internal.ws.client.ContentNegotiation";
+
+	private static boolean m_gzipRequest = false;
+	private static boolean m_gzipResponse = false;
+	private static String m_fastInfoset = FAST_INFOSET_NONE;
+	private static boolean m_soapStats = false;
+
+	/** マネージャごとのポート数の上限 */
+	private static int m_portPoolSize = 4;
+
+	/** 応答時間の移動平均の重み */
+	private static final double LATENCY_ALPHA = 0.2;
+
+	/** 遮断するまでの連続失敗回数 */
+	private static int m_breakerFailures = 3;
+	/** 遮断する最大時間(ms) */
+	private static long m_breakerOpenMsec = 60000;
+	/** 遮断したマネージャに接続を試みる間隔(ms)。0の場合は試みない */
+	private static long m_probeIntervalMsec = 10000;
+	/** 統計を出力する間隔(ms)。0の場合は出力しない */
+	private static long m_statsIntervalMsec = 0;
+
+	private static ScheduledExecutorService m_scheduler = null;
+
+	/** エージェントに同梱したWSDLの場所(AgentWS.jar内) */
+	private static final String LOCAL_WSDL_DIR = "META-INF/wsdl/";
+	/** 同梱したWSDLを使用するかどうか */
+	private static boolean m_localWsdl = true;
+
 	public static void init(String user, String pass, String managerAddressList,
 			int httpConnectTimeout, int httpRequestTimeout) throws MalformedURLException {
 		username = user;
@@ -177,21 +601,138 @@ public class EndpointManager {
 		m_httpConnectTimeout = httpConnectTimeout;
 		m_httpRequestTimeout = httpRequestTimeout;
 
+		m_gzipRequest = Boolean.parseBoolean(AgentProperties.getProperty("soap.gzip.request", "false"));
+		m_log.info("soap.gzip.request = " + m_gzipRequest);
+		m_gzipResponse = Boolean.parseBoolean(AgentProperties.getProperty("soap.gzip.response", "false"));
+		m_log.info("soap.gzip.response = " + m_gzipResponse);
+		String fastInfoset = AgentProperties.getProperty("soap.fastinfoset", FAST_INFOSET_NONE);
+		if (FAST_INFOSET_PESSIMISTIC.equals(fastInfoset) || FAST_INFOSET_OPTIMISTIC.equals(fastInfoset)) {
+			m_fastInfoset = fastInfoset;
+		} else {
+			m_fastInfoset = FAST_INFOSET_NONE;
+		}
+		m_log.info("soap.fastinfoset = " + m_fastInfoset);
+		m_soapStats = Boolean.parseBoolean(AgentProperties.getProperty("soap.stats", "false"));
+		m_log.info("soap.stats = " + m_soapStats);
+
+		String portPoolSize = AgentProperties.getProperty("soap.port.pool.size", "4");
+		try {
+			int size = Integer.parseInt(portPoolSize);
+			if (size > 0) {
+				m_portPoolSize = size;
+			}
+		} catch (NumberFormatException e) {
+			m_log.warn("init() : soap.port.pool.size", e);
+		}
+		m_log.info("soap.port.pool.size = " + m_portPoolSize);
+
+		// HTTPのKeep-Alive接続をポート数まで保持する(JDKの既定は5)
+		if (System.getProperty("http.maxConnections") == null && m_portPoolSize > 5) {
+			System.setProperty("http.maxConnections", Integer.toString(m_portPoolSize));
+		}
+
+		m_localWsdl = Boolean.parseBoolean(AgentProperties.getProperty("soap.wsdl.local", "true"));
+		m_log.info("soap.wsdl.local = " + m_localWsdl);
+
+		String breakerFailures = AgentProperties.getProperty("endpoint.breaker.failures", "3");
+		try {
+			int failures = Integer.parseInt(breakerFailures);
+			if (failures > 0) {
+				m_breakerFailures = failures;
+			}
+		} catch (NumberFormatException e) {
+			m_log.warn("init() : endpoint.breaker.failures", e);
+		}
+		m_log.info("endpoint.breaker.failures = " + m_breakerFailures);
+
+		String breakerOpenMsec = AgentProperties.getProperty("endpoint.breaker.open.msec", "60000");
+		try {
+			m_breakerOpenMsec = Long.parseLong(breakerOpenMsec);
+		} catch (NumberFormatException e) {
+			m_log.warn("init() : endpoint.breaker.open.msec", e);
+		}
+		m_log.info("endpoint.breaker.open.msec = " + m_breakerOpenMsec);
+
+		String probeIntervalMsec = AgentProperties.getProperty("endpoint.probe.interval.msec", "10000");
+		try {
+			m_probeIntervalMsec = Long.parseLong(probeIntervalMsec);
+		} catch (NumberFormatException e) {
+			m_log.warn("init() : endpoint.probe.interval.msec", e);
+		}
+		m_log.info("endpoint.probe.interval.msec = " + m_probeIntervalMsec);
+
+		String statsIntervalMsec = AgentProperties.getProperty("endpoint.stats.interval.msec", "0");
+		try {
+			m_statsIntervalMsec = Long.parseLong(statsIntervalMsec);
+		} catch (NumberFormatException e) {
+			m_log.warn("init() : endpoint.stats.interval.msec", e);
+		}
+		m_log.info("endpoint.stats.interval.msec = " + m_statsIntervalMsec);
+
 		for (String managerAddress : managerAddressList.split(",")) {
 
 			// TODO ユーザ/パスワードチェックを実装する必要あり。
 			HashMap<String, EndpointSetting> map = new HashMap<String, EndpointSetting>();
 			String wsdlPrefix = managerAddress.trim();
 
-			map.put(AGENT, new EndpointSetting(AGENT, wsdlPrefix));
-			map.put(CLOUD_COMMON, new EndpointSetting(CLOUD_COMMON, wsdlPrefix));
+			ManagerStatus status = new ManagerStatus(wsdlPrefix);
+			map.put(AGENT, new EndpointSetting(AGENT, wsdlPrefix, status));
+			map.put(CLOUD_COMMON, new EndpointSetting(CLOUD_COMMON, wsdlPrefix, status));
 
 			endpointList.add(map);
 		}
 		m_log.info("manager instance = " + endpointList.size());
+
+		startScheduler();
+	}
+
+	/**
+	 * 遮断したマネージャへの接続の確認と、統計の出力を開始する
+	 */
+	private static synchronized void startScheduler() {
+		if (m_scheduler != null) {
+			m_scheduler.shutdownNow();
+			m_scheduler = null;
+		}
+		if (m_probeIntervalMsec <= 0 && m_statsIntervalMsec <= 0) {
+			return;
+		}
+		m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EndpointProbe");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (m_probeIntervalMsec > 0) {
+			m_scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (ManagerStatus status : endpointList.getStatusList()) {
+							status.probe();
+						}
+					} catch (Throwable t) {
+						m_log.warn("probe : " + t.getMessage(), t);
+					}
+				}
+			}, m_probeIntervalMsec, m_probeIntervalMsec, TimeUnit.MILLISECONDS);
+		}
+		if (m_statsIntervalMsec > 0) {
+			m_scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					for (String stats : getStatistics()) {
+						m_log.info("endpoint stats : " + stats);
+					}
+				}
+			}, m_statsIntervalMsec, m_statsIntervalMsec, TimeUnit.MILLISECONDS);
+		}
 	}
 
-	private static void setBindingProvider(Object o, String user, String password, String urlStr) {
+	@SuppressWarnings("rawtypes")
+	private static void setBindingProvider(Object o, String user, String password, String urlStr, EndpointSetting setting) {
 		BindingProvider bp = (BindingProvider)o;
 		bp.getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, urlStr);
 		bp.getRequestContext().put(BindingProvider.USERNAME_PROPERTY, user);
@@ -203,6 +744,27 @@ public class EndpointManager {
 		bp.getRequestContext().put("com.sun.xml.internal.ws.connect.timeout", m_httpConnectTimeout);
 		bp.getRequestContext().put("com.sun.xml.internal.ws.request.timeout", m_httpRequestTimeout);
 
+		// HTTPの圧縮(JAX-WSがContent-Encodingに従ってリクエストを圧縮し、レスポンスを展開する)
+		Map<String, List<String>> headers = new HashMap<String, List<String>>();
+		if (setting.gzipRequest) {
+			headers.put("Content-Encoding", Collections.singletonList("gzip"));
+		}
+		if (setting.gzipResponse) {
+			headers.put("Accept-Encoding", Collections.singletonList("gzip"));
+		}
+		if (!headers.isEmpty()) {
+			bp.getRequestContext().put(MessageContext.HTTP_REQUEST_HEADERS, headers);
+		}
+		if (!FAST_INFOSET_NONE.equals(setting.fastInfoset)) {
+			bp.getRequestContext().put(CONTENT_NEGOTIATION_PROPERTY, setting.fastInfoset);
+		}
+		m_log.info(urlStr + " : " + setting.getEncodingString());
+
+		if (m_soapStats) {
+			List<Handler> chain = bp.getBinding().getHandlerChain();
+			chain.add(new SoapStatsHandler(urlStr, setting));
+			bp.getBinding().setHandlerChain(chain);
+		}
 	}
 
 	/**
@@ -228,6 +790,31 @@ public class EndpointManager {
 		endpointList.changeEndpoint();
 	}
 
+	/**
+	 *  Endpointの利用時にWebServiceExceptionが出たらこのメソッドを呼ぶこと。
+	 * @param setting 失敗したEndpoint
+	 * @param e 発生した例外
+	 */
+	public static void changeEndpoint(EndpointSetting setting, WebServiceException e) {
+		setting.onFailure(e);
+		endpointList.changeEndpoint();
+	}
+
+	/**
+	 * マネージャごとの状態、成功・失敗回数、応答時間を返す。
+	 * @return マネージャごとの統計の文字列
+	 */
+	public static List<String> getStatistics() {
+		List<String> list = new ArrayList<String>();
+		if (endpointList == null) {
+			return list;
+		}
+		for (ManagerStatus status : endpointList.getStatusList()) {
+			list.add(status.toString());
+		}
+		return list;
+	}
+
 	/**
 	 * ログアウト
 	 */
@@ -39,7 +39,10 @@ import com.clustercontrol.agent.util.AgentProperties;
 import com.clustercontrol.agent.util.CollectorId;
 import com.clustercontrol.agent.util.CollectorManager;
 import com.clustercontrol.agent.util.CommandMonitoringWSUtil;
+import com.clustercontrol.agent.util.MonitorResultAggregator;
+import com.clustercontrol.agent.util.MonitorStringRuleSet;
 import com.clustercontrol.agent.winevent.WinEventCollector;
+import com.clustercontrol.bean.HinemosModuleConstant;
 import com.clustercontrol.jobmanagement.bean.CommandConstant;
 import com.clustercontrol.jobmanagement.bean.CommandStopTypeConstant;
 import com.clustercontrol.jobmanagement.bean.CommandTypeConstant;
@@ -144,6 +147,7 @@ public class ReceiveTopic extends Thread {
 		
 		// マネージャとの接続queueを設定
 		LogfileMonitorManager.setSendQueue(m_sendQueue);
+		MonitorStringRuleSet.setSendQueue(m_sendQueue);
 	}
 
 
@@ -457,6 +461,9 @@ public class ReceiveTopic extends Thread {
 						", monitorId=" + info.getMonitorId() +
 						", monitorFlg=" + info.getMonitorFlg());
 			}
+			// 文字列監視ルールは設定受信時のみコンパイルする
+			MonitorStringRuleSet.refresh(HinemosModuleConstant.MONITOR_LOGFILE, list);
+			MonitorResultAggregator.flushRemoved(HinemosModuleConstant.MONITOR_LOGFILE, list);
 			LogfileMonitorManager.setMonitorInfoList(list);
 
 		} catch (HinemosUnknown_Exception e) {
@@ -484,6 +491,8 @@ public class ReceiveTopic extends Thread {
 		try {
 			ArrayList<MonitorInfo> list = AgentEndPointWrapper.getMonitorWinEvent();
 			m_log.debug("windows event monitoring list size : " + list.size());
+			MonitorStringRuleSet.refresh(HinemosModuleConstant.MONITOR_WINEVENT, list);
+			MonitorResultAggregator.flushRemoved(HinemosModuleConstant.MONITOR_WINEVENT, list);
 
 			// unregister unnecessary WinEvent Collector
 			for (CollectorId collectId : CollectorManager.getAllCollectorIds()) {
@@ -15,16 +15,29 @@ PURPOSE.  See the GNU General Public License for more details.
 
 package com.clustercontrol.agent;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.clustercontrol.agent.util.AgentProperties;
+import com.clustercontrol.agent.util.XMLSanitizer;
 import com.clustercontrol.ws.agent.AgentOutputBasicInfo;
 import com.clustercontrol.ws.agent.JobInfoNotFound_Exception;
 import com.clustercontrol.ws.agent.OutputBasicInfo;
@@ -35,7 +48,20 @@ import com.clustercontrol.ws.jobmanagement.RunResultInfo;
  * ジョブ実行結果（チェック、開始含む）をQueue送信するクラス<BR>
  *
  * エージェントからの戻りメッセージはこのメソッドを用いて
- * マネージャに返送されます。
+ * マネージャに返送されます。<BR>
+ *
+ * メッセージは送信キー(ジョブのセッションID、監視項目ID)ごとに送信順を保つ送信スレッド(レーン)で送信します。
+ * レーンは送信キーごとの先頭のメッセージを順番に1回ずつ送信し、送信に失敗した送信キーは
+ * 一定時間後に再試行します(その間も同じレーンの他の送信キーのメッセージは送信します)。
+ * putAsync()は送信を待たずに戻り、送信結果はFutureで受け取ります。
+ * 送信待ちのメッセージ数がsendqueue.async.capacityに達した場合は、
+ * sendqueue.async.policyに従います(block : 空くまで待つ、caller : 上限を超えて受け付け、送信が終わるまで呼び出し元を待たせる、
+ * reject : 受け付けない)。いずれの場合も、同じ送信キーのメッセージの送信順は保ちます。
+ * put()は送信を待つため、rejectの場合もcallerと同様に受け付けます。<BR>
+ *
+ * sendqueue.journal.enable=trueの場合は、メッセージをディスクのジャーナルに記録してから
+ * 呼び出し元に戻ります。
+ * 送信が完了していないメッセージは、エージェントの再起動後に再送します。
  *
  */
 public class SendQueue {
@@ -47,78 +73,448 @@ public class SendQueue {
 
 	private long m_sendQueueReconnectionInterval = 10 * 1000l;
 
+	private static final String JOURNAL_ENABLE = "sendqueue.journal.enable";
+	private static final String JOURNAL_DIR = "sendqueue.journal.dir";
+	private static final String JOURNAL_COMPACT_SIZE = "sendqueue.journal.compact.size";
+
+	private static final String ASYNC_THREADS = "sendqueue.async.threads";
+	private static final String ASYNC_CAPACITY = "sendqueue.async.capacity";
+	private static final String ASYNC_POLICY = "sendqueue.async.policy";
+
+	private static final String POLICY_BLOCK = "block";
+	private static final String POLICY_CALLER = "caller";
+	private static final String POLICY_REJECT = "reject";
+
+	/** ジャーナル(無効の場合はnull) */
+	private SendQueueJournal m_journal = null;
+
+	/** 送信スレッド(送信キーごとに同じレーンで送信する) */
+	private final SendLane[] m_lanes;
+
+	/** 送信待ちのメッセージ数の上限 */
+	private final Semaphore m_capacity;
+
+	/** 上限に達した場合の動作 */
+	private final String m_policy;
+
+	/** 送信タスクを実行するスレッドプール(送信のタイムアウト用) */
+	private final ExecutorService m_senderPool = Executors.newCachedThreadPool(new SenderThreadFactory("Sender"));
+
 	/**
 	 * コンストラクタ
 	 * @param props プロパティファイル情報
 	 */
 	public SendQueue() {
 		super();
+
+		// 送信スレッド数
+		int threads = 4;
+		String threadsStr = AgentProperties.getProperty(ASYNC_THREADS, "4");
+		m_log.info(ASYNC_THREADS + " = " + threadsStr);
+		try {
+			int n = Integer.parseInt(threadsStr);
+			if (n > 0) {
+				threads = n;
+			}
+		} catch (NumberFormatException e) {
+			m_log.warn("SendQueue() : " + ASYNC_THREADS, e);
+		}
+
+		// 送信待ちのメッセージ数の上限
+		int capacity = 1000;
+		String capacityStr = AgentProperties.getProperty(ASYNC_CAPACITY, "1000");
+		m_log.info(ASYNC_CAPACITY + " = " + capacityStr);
+		try {
+			int n = Integer.parseInt(capacityStr);
+			if (n > 0) {
+				capacity = n;
+			}
+		} catch (NumberFormatException e) {
+			m_log.warn("SendQueue() : " + ASYNC_CAPACITY, e);
+		}
+		m_capacity = new Semaphore(capacity);
+
+		// 上限に達した場合の動作
+		String policy = AgentProperties.getProperty(ASYNC_POLICY, POLICY_BLOCK);
+		m_log.info(ASYNC_POLICY + " = " + policy);
+		if (!POLICY_CALLER.equals(policy) && !POLICY_REJECT.equals(policy)) {
+			policy = POLICY_BLOCK;
+		}
+		m_policy = policy;
+
+		m_lanes = new SendLane[threads];
+		for (int i = 0; i < threads; i++) {
+			m_lanes[i] = new SendLane(i);
+			m_lanes[i].start();
+		}
+
+		String enableStr = AgentProperties.getProperty(JOURNAL_ENABLE, "false");
+		m_log.info(JOURNAL_ENABLE + " = " + enableStr);
+		if (!Boolean.parseBoolean(enableStr)) {
+			return;
+		}
+
+		String dir = AgentProperties.getProperty(JOURNAL_DIR, Agent.getAgentHome() + "var/sendqueue");
+		m_log.info(JOURNAL_DIR + " = " + dir);
+
+		long compactSize = 16777216L;
+		String compactSizeStr = AgentProperties.getProperty(JOURNAL_COMPACT_SIZE, "16777216");
+		m_log.info(JOURNAL_COMPACT_SIZE + " = " + compactSizeStr + " byte");
+		try {
+			compactSize = Long.parseLong(compactSizeStr);
+		} catch (NumberFormatException e) {
+			m_log.warn("SendQueue() : " + JOURNAL_COMPACT_SIZE, e);
+		}
+
+		SendQueueJournal journal = new SendQueueJournal(new File(dir), compactSize);
+		List<SendQueueJournal.Entry> entries;
+		try {
+			entries = journal.open();
+		} catch (IOException e) {
+			// ジャーナルが使えない場合は記録せずに送信する
+			m_log.error("SendQueue() : failed to open journal. " + e.getMessage(), e);
+			journal.close();
+			return;
+		}
+		m_journal = journal;
+
+		// 再送するメッセージは上限に数えない
+		if (!entries.isEmpty()) {
+			m_log.info("SendQueue() : resend " + entries.size() + " messages");
+		}
+		for (SendQueueJournal.Entry entry : entries) {
+			SendFuture future = new SendFuture(entry.getInfo(), entry, false);
+			getLane(entry.getInfo()).add(getKey(entry.getInfo()), future);
+		}
 	}
 
 	/**
 	 * メッセージを送信します。<BR>
 	 * 
 	 * マネージャからの実行に対する応答メッセージを送信します。<BR>
-	 * 処理失敗は再試行します。
+	 * 処理失敗は再試行します。<BR>
+	 * ジャーナルが有効の場合は、ジャーナルに記録した時点でtrueを返します。
 	 * @param msg
 	 */
 	public boolean put(Object info) {
 		m_log.debug("put() start : " + info.getClass().getCanonicalName());
 
-		while (!ReceiveTopic.isHistoryClear()) {
-			m_log.debug("put() while (!ReceiveTopic.isHistoryClear()) is true");
+		SendFuture future = submit(info, true);
+		if (future.isJournaled()) {
+			m_log.debug("put() journaled : " + info.getClass().getCanonicalName());
+			return true;
+		}
+		try {
+			return getUninterruptibly(future);
+		} catch (ExecutionException e) {
+			m_log.warn("put() : " + e.getCause().getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * メッセージの送信を依頼し、送信を待たずに戻ります。<BR>
+	 *
+	 * 同じ送信キーのメッセージは依頼した順に送信します。
+	 * 送信に成功した場合はtrue、ジョブ履歴の削除により送信を中止した場合はfalseが設定されます。
+	 * 送信待ちのメッセージ数が上限に達していて、sendqueue.async.policy=rejectの場合は、
+	 * RejectedExecutionExceptionで失敗します。
+	 * sendqueue.async.policy=callerの場合は、送信が終わるまで待ってから戻ります。<BR>
+	 *
+	 * 送信が完了するまで、infoを変更しないでください。
+	 * @param info 送信するメッセージ
+	 * @return 送信結果
+	 */
+	public Future<Boolean> putAsync(Object info) {
+		m_log.debug("putAsync() start : " + info.getClass().getCanonicalName());
+		return submit(info, false);
+	}
+
+	/**
+	 * @param wait 送信を待つ場合はtrue(上限に達していても受け付ける)
+	 */
+	private SendFuture submit(Object info, boolean wait) {
+		// 送信を再試行するたびに行わないよう、キューに入れる時に1回だけ行う
+		if (info instanceof RunResultInfo) {
+			XMLSanitizer.sanitize((RunResultInfo) info);
+		} else if (info instanceof OutputBasicInfo) {
+			XMLSanitizer.sanitize((OutputBasicInfo) info);
+		}
+
+		boolean permit = true;
+		boolean callerWait = false;
+		if (!m_capacity.tryAcquire()) {
+			m_log.warn("submit() : send queue is full. policy=" + m_policy);
+			if (POLICY_REJECT.equals(m_policy) && !wait) {
+				SendFuture future = new SendFuture(info, null, false);
+				future.reject();
+				return future;
+			} else if (POLICY_CALLER.equals(m_policy) || POLICY_REJECT.equals(m_policy)) {
+				// 上限を超えて受け付け、送信が終わるまで呼び出し元を待たせる。
+				// 呼び出し元のスレッドで直接送信すると、同じ送信キーの送信待ちのメッセージを追い越すため、レーンで送信する
+				permit = false;
+				callerWait = true;
+			} else {
+				m_capacity.acquireUninterruptibly();
+			}
+		}
 
-			boolean sendQueueStatus = false;
-			ExecutorService es = null;
-			Future<Boolean> task = null;
+		SendQueueJournal.Entry entry = null;
+		if (m_journal != null && SendQueueJournal.isSupported(info)) {
 			try {
-				String id = "";
-				// Executorオブジェクトの生成
-				SenderThreadFactory threadFactory = new SenderThreadFactory(id);
-				es = Executors.newSingleThreadExecutor(threadFactory);
-
-				// Queue送信タスクを実行する。
-				// 別スレッドでQueue送信処理を実行することで、送信処理に無限の時間がかかっても、
-				// Future.get()のタイムアウトにより、本スレッドに制御が戻るようにする。
-				m_log.debug("put() submit");
-				task = es.submit(new Sender(info));
-				sendQueueStatus = task.get(SEND_TIMEOUT, TimeUnit.MILLISECONDS);
+				entry = m_journal.append(info);
+			} catch (IOException e) {
+				// 記録できない場合は記録せずに送信する
+				m_log.warn("submit() : failed to write journal. " + e.getMessage(), e);
+			}
+		}
+		SendFuture future = new SendFuture(info, entry, permit);
+		getLane(info).add(getKey(info), future);
+		if (callerWait) {
+			try {
+				getUninterruptibly(future);
+			} catch (ExecutionException e) {
+				// 結果はFutureで受け取る
+			}
+		}
+		return future;
+	}
 
-			} catch (Exception e) {
-				// Queue送信処理で例外が発生した場合、もしくは、Future.get()でタイムアウトが発生した場合に、
-				// ここに制御が移る
+	/**
+	 * 送信が完了するまで待つ(割り込まれても待ち続ける)
+	 */
+	private static Boolean getUninterruptibly(Future<Boolean> future) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					// 従来どおり、送信が完了するまで待つ
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
-				// ログファイルにログ出力
-				m_log.warn("put() : Failed to connect to MGR " + e.getMessage(), e);
+	/**
+	 * 送信キー(この単位で送信順を保つ)
+	 */
+	private static String getKey(Object info) {
+		String key = null;
+		if (info instanceof RunResultInfo) {
+			key = ((RunResultInfo) info).getSessionId();
+		} else if (info instanceof OutputBasicInfo) {
+			key = ((OutputBasicInfo) info).getMonitorId();
+		}
+		return key == null ? "" : key;
+	}
+
+	/**
+	 * 送信キーに対応するレーンを返す
+	 */
+	private SendLane getLane(Object info) {
+		int hash = getKey(info).hashCode();
+		return m_lanes[(hash & 0x7fffffff) % m_lanes.length];
+	}
+
+	/**
+	 * 1回だけ送信を試みる
+	 * @return 送信した場合はtrue
+	 */
+	private boolean sendOnce(Object info) {
+		Future<Boolean> task = null;
+		try {
+			// Queue送信タスクを実行する。
+			// 別スレッドでQueue送信処理を実行することで、送信処理に無限の時間がかかっても、
+			// Future.get()のタイムアウトにより、本スレッドに制御が戻るようにする。
+			m_log.debug("sendOnce() submit");
+			task = m_senderPool.submit(new Sender(info));
+			return task.get(SEND_TIMEOUT, TimeUnit.MILLISECONDS);
+
+		} catch (Exception e) {
+			// Queue送信処理で例外が発生した場合、もしくは、Future.get()でタイムアウトが発生した場合に、
+			// ここに制御が移る
+
+			// ログファイルにログ出力
+			m_log.warn("sendOnce() : Failed to connect to MGR " + e.getMessage(), e);
+			return false;
+
+		} finally {
+			// タスクをキャンセル
+			if (task != null) {
+				task.cancel(true);
+			}
+			m_log.debug("sendOnce() end    : " + info.getClass().getCanonicalName());
+		}
+	}
 
-			} finally {
-				// タスクをキャンセル
-				if (task != null) {
-					task.cancel(true);
+	/**
+	 * 送信を依頼されたメッセージ<BR>
+	 *
+	 * レーンがattempt()で送信を試み、送信の完了(または中止)時に結果を設定する。
+	 * 送信の開始後はキャンセルできない(送信は中断しない)。
+	 */
+	private class SendFuture extends FutureTask<Boolean> {
+		private final Object m_info;
+		private final SendQueueJournal.Entry m_entry;
+		private final boolean m_permit;
+
+		public SendFuture(Object info, SendQueueJournal.Entry entry, boolean permit) {
+			// 結果はattempt()、reject()で設定するため、run()は使用しない
+			super(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					throw new IllegalStateException("SendFuture is not runnable");
 				}
+			});
+			m_info = info;
+			m_entry = entry;
+			m_permit = permit;
+		}
 
-				if (es != null) {
-					es.shutdown();
+		public boolean isJournaled() {
+			return m_entry != null;
+		}
+
+		/**
+		 * 1回だけ送信を試み、送信した場合(または送信を中止した場合)は結果を設定する
+		 * @return 完了した場合はtrue、再試行が必要な場合はfalse
+		 */
+		public boolean attempt() {
+			boolean ret;
+			if (ReceiveTopic.isHistoryClear()) {
+				// 従来どおり、ジョブ履歴を削除した場合は送信しない
+				m_log.info("SendFuture : discard message : " + m_info.getClass().getCanonicalName());
+				ret = false;
+			} else if (sendOnce(m_info)) {
+				m_log.debug("SendFuture : sent : " + m_info.getClass().getCanonicalName());
+				ret = true;
+			} else {
+				return false;
+			}
+			if (m_entry != null) {
+				m_journal.ack(m_entry.getSeq());
+			}
+			set(ret);
+			return true;
+		}
+
+		/**
+		 * 送信待ちのメッセージ数が上限に達していて受け付けられない場合
+		 */
+		public void reject() {
+			setException(new RejectedExecutionException("send queue is full"));
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return super.cancel(false);
+		}
+
+		@Override
+		protected void done() {
+			if (m_permit) {
+				m_capacity.release();
+			}
+		}
+	}
+
+	/**
+	 * 送信キーごとの送信待ちのメッセージ
+	 */
+	private static class KeyQueue {
+		private final LinkedList<SendFuture> futures = new LinkedList<SendFuture>();
+		/** 次に送信を試みる時刻(送信に失敗した場合のみ設定する) */
+		private long retryAt = 0;
+	}
+
+	/**
+	 * 送信キーごとに依頼された順にメッセージを送信するスレッド<BR>
+	 *
+	 * 送信キーの先頭のメッセージを順番に1回ずつ送信する。
+	 * 送信に失敗した送信キーはsendQueueReconnectionInterval後に再試行し、その間は同じ送信キーの後続のメッセージも送信しない。
+	 */
+	private class SendLane extends Thread {
+		/** 送信キーごとの送信待ちのメッセージ(送信を試みる順) */
+		private final LinkedHashMap<String, KeyQueue> m_keys = new LinkedHashMap<String, KeyQueue>();
+
+		public SendLane(int index) {
+			super("SendQueue-" + index);
+			setDaemon(true);
+		}
+
+		public synchronized void add(String key, SendFuture future) {
+			KeyQueue queue = m_keys.get(key);
+			if (queue == null) {
+				queue = new KeyQueue();
+				m_keys.put(key, queue);
+			}
+			queue.futures.addLast(future);
+			notifyAll();
+		}
+
+		/**
+		 * 次に送信を試みる送信キーを返す(送信を試みられる送信キーがない場合は待つ)
+		 */
+		private synchronized String nextKey() throws InterruptedException {
+			while (true) {
+				long now = System.currentTimeMillis();
+				long wait = 0;
+				for (Map.Entry<String, KeyQueue> entry : m_keys.entrySet()) {
+					long retryAt = entry.getValue().retryAt;
+					if (retryAt <= now) {
+						return entry.getKey();
+					}
+					wait = wait == 0 ? retryAt - now : Math.min(wait, retryAt - now);
 				}
-				m_log.debug("put() end    : " + info.getClass().getCanonicalName());
+				wait(wait);
 			}
+		}
 
-			// 送信が成功していない場合はsleep後に再送を試みる
-			// Queue送信に成功した場合はループを抜ける
-			if(sendQueueStatus){
-				m_log.debug("put() return true : " + info.getClass().getCanonicalName());
-				return true;
+		private synchronized SendFuture peek(String key) {
+			return m_keys.get(key).futures.getFirst();
+		}
+
+		/**
+		 * 送信を試みた結果を反映し、送信キーを最後に回す
+		 */
+		private synchronized void complete(String key, boolean done) {
+			KeyQueue queue = m_keys.remove(key);
+			if (done) {
+				queue.futures.removeFirst();
+				queue.retryAt = 0;
 			} else {
-				// 一定時間sleepした後、QueueConnection、QueueSession を再接続する。
+				queue.retryAt = System.currentTimeMillis() + m_sendQueueReconnectionInterval;
+			}
+			if (!queue.futures.isEmpty()) {
+				m_keys.put(key, queue);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				String key;
 				try {
-					m_log.debug("put() reput interval sleep: " + m_sendQueueReconnectionInterval + " sec");
-					Thread.sleep(m_sendQueueReconnectionInterval);
-				} catch (InterruptedException e1) {
-					m_log.error("put() reput interval sleep: ", e1);
+					key = nextKey();
+				} catch (InterruptedException e) {
+					m_log.warn("SendLane : interrupted");
+					return;
 				}
+				boolean done = false;
+				try {
+					done = peek(key).attempt();
+				} catch (Exception e) {
+					m_log.error("SendLane : " + e.getMessage(), e);
+				}
+				complete(key, done);
 			}
-		} // End While Loop
-		return false;
+		}
 	}
 
 	/**
@@ -165,8 +561,9 @@ public class SendQueue {
 	/**
 	 * Queueメッセージ送信処理を実行するタスク用のThreadFactory
 	 */
-	private class SenderThreadFactory implements ThreadFactory {
+	private static class SenderThreadFactory implements ThreadFactory {
 		private final String m_threadName;
+		private final AtomicInteger m_count = new AtomicInteger();
 
 		public SenderThreadFactory(String threadName){
 			m_threadName = threadName;
@@ -174,7 +571,9 @@ public class SendQueue {
 
 		@Override
 		public Thread newThread(Runnable r) {
-			return new Thread(r, "Sender-" + m_threadName);
+			Thread thread = new Thread(r, m_threadName + "-" + m_count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
 		}
 	}
 }
@@ -0,0 +1,460 @@
+/*
+
+Copyright (C) 2016 NTT DATA Corporation
+
+This program is free software; you can redistribute it and/or
+Modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation, version 2.
+
+This program is distributed in the hope that it will be
+useful, but WITHOUT ANY WARRANTY; without even the implied
+warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+PURPOSE.  See the GNU General Public License for more details.
+
+ */
+
+package com.clustercontrol.agent;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.clustercontrol.ws.agent.OutputBasicInfo;
+import com.clustercontrol.ws.jobmanagement.RunResultInfo;
+
+/**
+ * SendQueueの送信待ちメッセージをディスクに記録するジャーナル<BR>
+ *
+ * メッセージは追記のみのファイルに記録し、送信が完了したら完了レコードを追記する。
+ * エージェントの起動時に、完了レコードのないメッセージを記録順に読み出す。<BR>
+ *
+ * レコードの形式は次のとおり。
+ * <pre>
+ * 長さ(int : 種別からデータまで) 種別(byte) 通番(long) データ(XML) CRC32(int : 種別からデータまで)
+ * </pre>
+ * 書き込み途中で停止した末尾のレコードは、CRCの不一致として読み出し時に切り捨てる。<BR>
+ *
+ * fsyncは複数スレッドの書き込みをまとめて行う(グループコミット)。
+ * ロックはm_syncLock、thisの順に取得する(追記はthisのみで行い、fsync中も追記できるようにする)。
+ * 送信待ちのメッセージがなくなった場合はファイルを空にし、
+ * 送信済みのレコードが一定サイズを超えた場合は送信待ちのレコードのみのファイルに作り直す。
+ */
+public class SendQueueJournal {
+
+	// ロガー
+	private static Log m_log = LogFactory.getLog(SendQueueJournal.class);
+
+	private static final String FILE_NAME = "sendqueue.journal";
+	private static final String TMP_FILE_NAME = "sendqueue.journal.tmp";
+
+	/** レコード種別 : ジョブの実行結果(RunResultInfo) */
+	private static final byte TYPE_RUN_RESULT = 1;
+	/** レコード種別 : 監視管理への通知(OutputBasicInfo) */
+	private static final byte TYPE_OUTPUT = 2;
+	/** レコード種別 : 送信完了 */
+	private static final byte TYPE_ACK = 3;
+
+	/** 種別と通番のサイズ */
+	private static final int HEADER_SIZE = 1 + 8;
+	/** 1レコードの上限(これを超える長さは破損とみなす) */
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	private static JAXBContext s_context = null;
+
+	private final File m_file;
+	private final File m_tmpFile;
+
+	/** 送信済みレコードがこのサイズを超えたらファイルを作り直す */
+	private final long m_compactSize;
+
+	// 以下はthisで保護する(ファイルの作り直しはm_syncLockも取得して行う)
+	private RandomAccessFile m_raf = null;
+	private FileChannel m_channel = null;
+	private long m_writePos = 0;
+	private long m_nextSeq = 1;
+	/** 送信待ちのレコード(通番順) */
+	private final LinkedHashMap<Long, byte[]> m_pendingRecords = new LinkedHashMap<Long, byte[]>();
+	/** 送信待ちのレコードの合計サイズ */
+	private long m_pendingSize = 0;
+
+	// 以下はm_syncLockで保護する
+	private final Object m_syncLock = new Object();
+	private long m_syncedPos = 0;
+
+	/**
+	 * 送信待ちのメッセージ
+	 */
+	public static class Entry {
+		private final long seq;
+		private final Object info;
+
+		private Entry(long seq, Object info) {
+			this.seq = seq;
+			this.info = info;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public Object getInfo() {
+			return info;
+		}
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param dir ジャーナルを置くディレクトリ
+	 * @param compactSize 送信済みレコードがこのサイズを超えたらファイルを作り直す(byte)
+	 */
+	public SendQueueJournal(File dir, long compactSize) {
+		m_file = new File(dir, FILE_NAME);
+		m_tmpFile = new File(dir, TMP_FILE_NAME);
+		m_compactSize = compactSize;
+	}
+
+	/**
+	 * ジャーナルに記録できるメッセージかどうか
+	 */
+	public static boolean isSupported(Object info) {
+		return info instanceof RunResultInfo || info instanceof OutputBasicInfo;
+	}
+
+	/**
+	 * ジャーナルを開き、送信が完了していないメッセージを記録順に返す
+	 * @return 送信待ちのメッセージ
+	 */
+	public List<Entry> open() throws IOException {
+		synchronized (m_syncLock) {
+			synchronized (this) {
+				return openJournal();
+			}
+		}
+	}
+
+	private List<Entry> openJournal() throws IOException {
+		File dir = m_file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("failed to create directory : " + dir.getAbsolutePath());
+		}
+
+		// 書き込み途中のレコードの手前までを読み出す
+		long validSize = 0;
+		if (m_file.exists()) {
+			validSize = replay();
+		}
+
+		m_raf = new RandomAccessFile(m_file, "rw");
+		m_channel = m_raf.getChannel();
+		if (m_channel.size() > validSize) {
+			m_log.warn("open() : truncate broken record. file=" + m_file.getAbsolutePath()
+					+ ", size=" + m_channel.size() + ", valid=" + validSize);
+		}
+		m_writePos = validSize;
+
+		// 送信済みのレコードを除いたファイルに作り直す
+		rewrite();
+
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		ArrayList<Long> brokenSeqs = new ArrayList<Long>();
+		for (Map.Entry<Long, byte[]> record : m_pendingRecords.entrySet()) {
+			try {
+				entries.add(new Entry(record.getKey(), decode(record.getValue())));
+			} catch (JAXBException e) {
+				m_log.error("open() : failed to read message. seq=" + record.getKey() + ", " + e.getMessage(), e);
+				brokenSeqs.add(record.getKey());
+			}
+		}
+		for (Long seq : brokenSeqs) {
+			ackRecord(seq);
+		}
+		m_log.info("open() : " + m_file.getAbsolutePath() + " pending=" + entries.size() + ", nextSeq=" + m_nextSeq);
+		return entries;
+	}
+
+	/**
+	 * ファイルを読み込み、送信待ちのレコードと次の通番を求める
+	 * @return 正常に読み込めたサイズ
+	 */
+	private long replay() throws IOException {
+		long pos = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+		try {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (length < HEADER_SIZE || length > MAX_RECORD_SIZE) {
+					m_log.warn("replay() : invalid record length=" + length + ", position=" + pos);
+					break;
+				}
+				byte[] body = new byte[length];
+				int crc;
+				try {
+					in.readFully(body);
+					crc = in.readInt();
+				} catch (EOFException e) {
+					m_log.warn("replay() : incomplete record. position=" + pos);
+					break;
+				}
+				if (crc != crc32(body)) {
+					m_log.warn("replay() : crc mismatch. position=" + pos);
+					break;
+				}
+
+				ByteBuffer header = ByteBuffer.wrap(body, 0, HEADER_SIZE);
+				byte type = header.get();
+				long seq = header.getLong();
+				if (type == TYPE_ACK) {
+					removePending(seq);
+				} else {
+					addPending(seq, toRecord(body));
+				}
+				m_nextSeq = Math.max(m_nextSeq, seq + 1);
+				pos += 4 + length + 4;
+			}
+		} finally {
+			in.close();
+		}
+		return pos;
+	}
+
+	/**
+	 * メッセージを記録する。ディスクに書き込まれるまで戻らない。
+	 * @param info メッセージ
+	 * @return 記録したメッセージ
+	 */
+	public Entry append(Object info) throws IOException {
+		byte type;
+		if (info instanceof RunResultInfo) {
+			type = TYPE_RUN_RESULT;
+		} else if (info instanceof OutputBasicInfo) {
+			type = TYPE_OUTPUT;
+		} else {
+			throw new IOException("unsupported message : " + info.getClass().getName());
+		}
+		byte[] data;
+		try {
+			data = encode(info);
+		} catch (JAXBException e) {
+			throw new IOException("failed to write message : " + e.getMessage(), e);
+		}
+
+		long seq;
+		long pos;
+		synchronized (this) {
+			if (m_channel == null) {
+				throw new IOException("journal is not opened");
+			}
+			seq = m_nextSeq++;
+			byte[] record = createRecord(type, seq, data);
+			write(record);
+			addPending(seq, record);
+			pos = m_writePos;
+		}
+		sync(pos);
+		return new Entry(seq, info);
+	}
+
+	/**
+	 * メッセージの送信完了を記録する<BR>
+	 *
+	 * 完了レコードはfsyncしない(停止時に失われた場合は、次回の起動時に再送する)。
+	 *
+	 * @param seq 通番
+	 */
+	public void ack(long seq) throws IOException {
+		synchronized (m_syncLock) {
+			synchronized (this) {
+				ackRecord(seq);
+			}
+		}
+	}
+
+	private void ackRecord(long seq) throws IOException {
+		if (m_channel == null) {
+			return;
+		}
+		removePending(seq);
+		if (m_pendingRecords.isEmpty()) {
+			// 送信待ちがなくなった場合はファイルを空にする
+			truncate();
+			return;
+		}
+		write(createRecord(TYPE_ACK, seq, new byte[0]));
+		if (m_writePos - m_pendingSize > m_compactSize) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * ジャーナルを閉じる
+	 */
+	public void close() {
+		synchronized (m_syncLock) {
+			synchronized (this) {
+				if (m_raf == null) {
+					return;
+				}
+				try {
+					m_raf.close();
+				} catch (IOException e) {
+					m_log.warn("close() : " + e.getMessage());
+				}
+				m_raf = null;
+				m_channel = null;
+			}
+		}
+	}
+
+	/**
+	 * 書き込んだ位置までをディスクに書き込む。
+	 * 待っている間に他のスレッドが書き込んだ分もまとめて書き込む。
+	 */
+	private void sync(long pos) throws IOException {
+		synchronized (m_syncLock) {
+			if (m_syncedPos >= pos) {
+				return;
+			}
+			long target;
+			FileChannel channel;
+			synchronized (this) {
+				target = m_writePos;
+				channel = m_channel;
+			}
+			channel.force(false);
+			m_syncedPos = target;
+		}
+	}
+
+	private void write(byte[] record) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		while (buf.hasRemaining()) {
+			m_writePos += m_channel.write(buf, m_writePos);
+		}
+	}
+
+	private void truncate() throws IOException {
+		m_channel.truncate(0);
+		m_channel.force(false);
+		m_writePos = 0;
+		m_syncedPos = 0;
+	}
+
+	/**
+	 * 送信待ちのレコードのみのファイルに作り直す
+	 */
+	private void rewrite() throws IOException {
+		if (m_pendingRecords.isEmpty()) {
+			truncate();
+			return;
+		}
+
+		long before = m_writePos;
+		RandomAccessFile tmp = new RandomAccessFile(m_tmpFile, "rw");
+		try {
+			tmp.setLength(0);
+			for (byte[] record : m_pendingRecords.values()) {
+				tmp.write(record);
+			}
+			tmp.getChannel().force(false);
+		} finally {
+			tmp.close();
+		}
+
+		m_raf.close();
+		Files.move(m_tmpFile.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		m_raf = new RandomAccessFile(m_file, "rw");
+		m_channel = m_raf.getChannel();
+		m_writePos = m_channel.size();
+		m_syncedPos = m_writePos;
+		m_log.info("rewrite() : " + m_file.getAbsolutePath() + " size " + before + " -> " + m_writePos
+				+ ", pending=" + m_pendingRecords.size());
+	}
+
+	private void addPending(long seq, byte[] record) {
+		m_pendingRecords.put(seq, record);
+		m_pendingSize += record.length;
+	}
+
+	private void removePending(long seq) {
+		byte[] record = m_pendingRecords.remove(seq);
+		if (record != null) {
+			m_pendingSize -= record.length;
+		}
+	}
+
+	private static byte[] createRecord(byte type, long seq, byte[] data) {
+		ByteBuffer body = ByteBuffer.allocate(HEADER_SIZE + data.length);
+		body.put(type);
+		body.putLong(seq);
+		body.put(data);
+		return toRecord(body.array());
+	}
+
+	private static byte[] toRecord(byte[] body) {
+		ByteBuffer record = ByteBuffer.allocate(4 + body.length + 4);
+		record.putInt(body.length);
+		record.put(body);
+		record.putInt(crc32(body));
+		return record.array();
+	}
+
+	private static int crc32(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		return (int) crc.getValue();
+	}
+
+	private static synchronized JAXBContext getContext() throws JAXBException {
+		if (s_context == null) {
+			s_context = JAXBContext.newInstance(RunResultInfo.class, OutputBasicInfo.class);
+		}
+		return s_context;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static byte[] encode(Object info) throws JAXBException {
+		Marshaller marshaller = getContext().createMarshaller();
+		marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		marshaller.marshal(new JAXBElement(new QName(info.getClass().getSimpleName()), info.getClass(), info), out);
+		return out.toByteArray();
+	}
+
+	private static Object decode(byte[] record) throws JAXBException {
+		// 長さ(4byte)、種別、通番の後ろからCRC(4byte)の前まで
+		byte type = record[4];
+		Class<?> clazz = type == TYPE_RUN_RESULT ? RunResultInfo.class : OutputBasicInfo.class;
+		ByteArrayInputStream in = new ByteArrayInputStream(record, 4 + HEADER_SIZE, record.length - 4 - HEADER_SIZE - 4);
+		return getContext().createUnmarshaller().unmarshal(new StreamSource(in), clazz).getValue();
+	}
+}
@@ -0,0 +1,117 @@
+/*
+
+Copyright (C) 2016 NTT DATA Corporation
+
+This program is free software; you can redistribute it and/or
+Modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation, version 2.
+
+This program is distributed in the hope that it will be
+useful, but WITHOUT ANY WARRANTY; without even the implied
+warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+PURPOSE.  See the GNU General Public License for more details.
+
+ */
+
+package com.clustercontrol.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.namespace.QName;
+import javax.xml.soap.SOAPMessage;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * SOAPメッセージのサイズを出力するハンドラ<BR>
+ *
+ * 送受信するメッセージごとに、XMLのサイズとgzip圧縮後のサイズ、圧縮にかかった時間を出力する。
+ * メッセージを書き出して計測するため、soap.stats=trueの場合のみ使用する。
+ */
+public class SoapStatsHandler implements SOAPHandler<SOAPMessageContext> {
+
+	// ロガー
+	private static Log m_log = LogFactory.getLog(SoapStatsHandler.class);
+
+	private final String m_url;
+	private final EndpointManager.EndpointSetting m_setting;
+
+	public SoapStatsHandler(String url, EndpointManager.EndpointSetting setting) {
+		m_url = url;
+		m_setting = setting;
+	}
+
+	@Override
+	public boolean handleMessage(SOAPMessageContext context) {
+		log(context);
+		return true;
+	}
+
+	@Override
+	public boolean handleFault(SOAPMessageContext context) {
+		log(context);
+		return true;
+	}
+
+	@Override
+	public void close(MessageContext context) {
+	}
+
+	@Override
+	public Set<QName> getHeaders() {
+		return Collections.emptySet();
+	}
+
+	private void log(SOAPMessageContext context) {
+		try {
+			boolean outbound = Boolean.TRUE.equals(context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY));
+			QName operation = (QName) context.get(MessageContext.WSDL_OPERATION);
+			SOAPMessage message = context.getMessage();
+
+			CountingOutputStream xml = new CountingOutputStream();
+			message.writeTo(xml);
+
+			long start = System.nanoTime();
+			CountingOutputStream gzip = new CountingOutputStream();
+			GZIPOutputStream out = new GZIPOutputStream(gzip);
+			message.writeTo(out);
+			out.close();
+			long time = System.nanoTime() - start;
+
+			m_log.info("soap " + (outbound ? "request" : "response")
+					+ " : operation=" + (operation == null ? "" : operation.getLocalPart())
+					+ ", url=" + m_url
+					+ ", encoding=" + m_setting.getEncodingString()
+					+ ", xml=" + xml.count + " byte"
+					+ ", gzip=" + gzip.count + " byte"
+					+ ", gzip time=" + (time / 1000) + " us");
+		} catch (Exception e) {
+			m_log.debug("log() : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * 書き込んだサイズのみを数えるストリーム
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int b) throws IOException {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			count += len;
+		}
+	}
+}
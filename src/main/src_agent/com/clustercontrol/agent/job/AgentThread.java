@@ -15,12 +15,16 @@ PURPOSE.  See the GNU General Public License for more details.
 
 package com.clustercontrol.agent.job;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.clustercontrol.agent.SendQueue;
 import com.clustercontrol.agent.util.AgentProperties;
 import com.clustercontrol.ws.jobmanagement.RunInstructionInfo;
+import com.clustercontrol.ws.jobmanagement.RunResultInfo;
 
 /**
  * エージェントスレッドクラス<BR>
@@ -68,4 +72,42 @@ public class AgentThread extends Thread {
 			}
 		}
 	}
+
+	/**
+	 * ジョブ実行指示から送信メッセージを作成する
+	 */
+	protected RunResultInfo createRunResultInfo() {
+		RunResultInfo info = new RunResultInfo();
+		info.setSessionId(m_info.getSessionId());
+		info.setJobunitId(m_info.getJobunitId());
+		info.setJobId(m_info.getJobId());
+		info.setFacilityId(m_info.getFacilityId());
+		info.setCommand(m_info.getCommand());
+		info.setCommandType(m_info.getCommandType());
+		info.setStopType(m_info.getStopType());
+		return info;
+	}
+
+	/**
+	 * 開始メッセージの送信を依頼し、送信の完了は待たない。<BR>
+	 *
+	 * 送信キューが一杯で受け付けられなかった場合は、終了メッセージだけが送信されないよう、
+	 * 送信が完了するまで待つput()で送信する。
+	 */
+	protected void putStartMessage(RunResultInfo info) {
+		Future<Boolean> future = m_sendQueue.putAsync(info);
+		if (!future.isDone()) {
+			return;
+		}
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			m_log.warn("putStartMessage() : " + e.getCause().getMessage() + ", SessionID=" + info.getSessionId()
+					+ ", JobID=" + info.getJobId() + ". wait until sent");
+			m_sendQueue.put(info);
+		} catch (InterruptedException e) {
+			// 完了しているため割り込まれない
+			Thread.currentThread().interrupt();
+		}
+	}
 }
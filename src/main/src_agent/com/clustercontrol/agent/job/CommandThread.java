@@ -25,6 +25,7 @@ import com.clustercontrol.agent.Agent;
 import com.clustercontrol.agent.AgentEndPointWrapper;
 import com.clustercontrol.agent.SendQueue;
 import com.clustercontrol.agent.util.AgentProperties;
+import com.clustercontrol.agent.util.XMLSanitizer;
 import com.clustercontrol.jobmanagement.bean.RunStatusConstant;
 import com.clustercontrol.util.CommandCreator;
 import com.clustercontrol.util.CommandExecutor;
@@ -110,6 +111,7 @@ public class CommandThread extends AgentThread {
 		resultInfo.setStopType(m_info.getStopType());
 		resultInfo.setStatus(RunStatusConstant.START);
 		resultInfo.setTime(new Date().getTime());
+		XMLSanitizer.sanitize(resultInfo);
 
 		m_log.info("run SessionID=" + m_info.getSessionId() + ", JobID="
 				+ m_info.getJobId());
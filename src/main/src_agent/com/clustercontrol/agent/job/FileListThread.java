@@ -78,21 +78,19 @@ public class FileListThread extends AgentThread {
 		//---------------------------
 
 		//メッセージ作成
-		RunResultInfo info = new RunResultInfo();
-		info.setSessionId(m_info.getSessionId());
-		info.setJobunitId(m_info.getJobunitId());
-		info.setJobId(m_info.getJobId());
-		info.setFacilityId(m_info.getFacilityId());
-		info.setCommand(m_info.getCommand());
-		info.setCommandType(m_info.getCommandType());
-		info.setStopType(m_info.getStopType());
+		RunResultInfo info = createRunResultInfo();
 		info.setStatus(RunStatusConstant.START);
 		info.setTime(startDate.getTime());
 
 		m_log.info("run SessionID=" + m_info.getSessionId() + ", JobID=" + m_info.getJobId());
 
-		//送信
-		m_sendQueue.put(info);
+		//送信(同じセッションのメッセージは依頼した順に送信されるため、送信の完了は待たない)
+		putStartMessage(info);
+
+		//終了メッセージ作成(送信前の開始メッセージを変更しないように、別のオブジェクトにする)
+		info = createRunResultInfo();
+		info.setStatus(RunStatusConstant.START);
+		info.setTime(startDate.getTime());
 
 		//ファイルリスト取得
 		List<String> fileList = getFileList(m_info.getFilePath());
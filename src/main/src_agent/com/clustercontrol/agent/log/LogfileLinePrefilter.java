@@ -0,0 +1,181 @@
+/*
+
+ Copyright (C) 2016 NTT DATA Corporation
+
+ This program is free software; you can redistribute it and/or
+ Modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation, version 2.
+
+ This program is distributed in the hope that it will be
+ useful, but WITHOUT ANY WARRANTY; without even the implied
+ warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ PURPOSE.  See the GNU General Public License for more details.
+
+ */
+
+package com.clustercontrol.agent.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.clustercontrol.agent.util.MonitorStringRuleSet;
+import com.clustercontrol.agent.util.StringLiteralAutomaton;
+
+/**
+ * ログファイルの1行を文字列に変換する前に、バイト列のままマッチし得るかを判定するフィルタ<BR>
+ *
+ * 監視設定の各ルールが必ず含むリテラルをファイルのエンコーディングでバイト列にし、
+ * いずれも含まない行はどのルールにもマッチしないものとして読み飛ばす。<BR>
+ *
+ * 判定は上位集合(マッチしない行を候補とすることはあっても、マッチする行を落とすことはない)とするため、
+ * 次の場合はフィルタを使用しない。
+ * <ul>
+ * <li>リテラルを抜き出せない有効なルールがある場合</li>
+ * <li>US-ASCIIの文字が同じ1バイトにならないエンコーディング(UTF-16など)、状態を持つエンコーディング(ISO-2022系)の場合</li>
+ * </ul>
+ * UTF-8以外のエンコーディングでは、1つの文字に複数のバイト列が対応することがあるため、
+ * リテラルのうちUS-ASCIIの部分のみを使用する。
+ */
+public class LogfileLinePrefilter {
+
+	// ロガー
+	private static Log m_log = LogFactory.getLog(LogfileLinePrefilter.class);
+
+	/** エンコーディングの判定に使用するUS-ASCIIの文字列 */
+	private static final String ASCII_TEST_STRING;
+	static {
+		StringBuilder sb = new StringBuilder();
+		for (char c = 0x20; c < 0x7f; c++) {
+			sb.append(c);
+		}
+		sb.append("\t\r\n");
+		ASCII_TEST_STRING = sb.toString();
+	}
+
+	/** リテラルのバイト列のオートマトン */
+	private final StringLiteralAutomaton m_automaton;
+
+	private LogfileLinePrefilter(StringLiteralAutomaton automaton) {
+		m_automaton = automaton;
+	}
+
+	/**
+	 * フィルタを生成する
+	 * @param ruleSet 監視設定のルールセット
+	 * @param encoding ログファイルのエンコーディング
+	 * @return フィルタ。フィルタを使用できない場合はnull
+	 */
+	public static LogfileLinePrefilter create(MonitorStringRuleSet ruleSet, String encoding) {
+		return create(Arrays.asList(ruleSet), encoding);
+	}
+
+	/**
+	 * 同じファイルを監視する複数の監視設定に共通のフィルタを生成する<BR>
+	 *
+	 * いずれかの監視設定のルールにマッチし得る行を候補とする。
+	 *
+	 * @param ruleSets 監視設定のルールセット
+	 * @param encoding ログファイルのエンコーディング
+	 * @return フィルタ。フィルタを使用できない場合はnull
+	 */
+	public static LogfileLinePrefilter create(List<MonitorStringRuleSet> ruleSets, String encoding) {
+		ArrayList<String> literals = new ArrayList<String>();
+		for (MonitorStringRuleSet ruleSet : ruleSets) {
+			List<String> ruleSetLiterals = ruleSet.getRequiredLiterals();
+			if (ruleSetLiterals == null) {
+				m_log.debug("create() : required literal is not found");
+				return null;
+			}
+			literals.addAll(ruleSetLiterals);
+		}
+		if (literals.isEmpty()) {
+			m_log.debug("create() : required literal is not found");
+			return null;
+		}
+
+		Charset charset;
+		try {
+			charset = Charset.forName(encoding);
+		} catch (RuntimeException e) {
+			m_log.debug("create() : " + e.getMessage());
+			return null;
+		}
+		if (!isAsciiCompatible(charset)) {
+			m_log.debug("create() : " + charset.name() + " is not supported");
+			return null;
+		}
+		boolean utf8 = "UTF-8".equals(charset.name());
+
+		ArrayList<String> byteLiterals = new ArrayList<String>();
+		for (String literal : literals) {
+			String target = utf8 ? literal : longestAsciiRun(literal);
+			if (target.length() == 0) {
+				m_log.debug("create() : ascii literal is not found. literal=" + literal);
+				return null;
+			}
+			// 1バイトを1文字とみなした文字列で登録する
+			byteLiterals.add(new String(target.getBytes(charset), Charset.forName("ISO-8859-1")));
+		}
+		return new LogfileLinePrefilter(new StringLiteralAutomaton(byteLiterals));
+	}
+
+	/**
+	 * US-ASCIIの文字が同じ1バイトになり、状態を持たないエンコーディングかどうか<BR>
+	 *
+	 * この場合、改行コードで区切ったバイト列ごとに文字列に変換しても結果は変わらない。
+	 *
+	 * @param charset エンコーディング
+	 * @return 該当する場合はtrue
+	 */
+	public static boolean isAsciiCompatible(Charset charset) {
+		if (charset.name().contains("2022") || !charset.canEncode()) {
+			return false;
+		}
+		return Arrays.equals(ASCII_TEST_STRING.getBytes(charset), ASCII_TEST_STRING.getBytes(Charset.forName("US-ASCII")));
+	}
+
+	private static String longestAsciiRun(String literal) {
+		int bestStart = 0;
+		int bestLength = 0;
+		int start = 0;
+		for (int i = 0; i <= literal.length(); i++) {
+			if (i == literal.length() || literal.charAt(i) >= 0x80) {
+				if (i - start > bestLength) {
+					bestStart = start;
+					bestLength = i - start;
+				}
+				start = i + 1;
+			}
+		}
+		return literal.substring(bestStart, bestStart + bestLength);
+	}
+
+	/**
+	 * 1行分のバイト列がいずれかのルールにマッチし得るかどうか<BR>
+	 *
+	 * 監視文字列の整形時に\rは削除されるため、行の途中に\rがある場合は常に候補とする。
+	 * 行末の\r(CR+LFの改行)は判定対象から除く。
+	 *
+	 * @param buf バッファ
+	 * @param start 行の開始位置
+	 * @param end 行の終了位置(改行コードを含まない)
+	 * @return マッチし得る場合はtrue
+	 */
+	public boolean isCandidate(ByteBuffer buf, int start, int end) {
+		if (end > start && buf.get(end - 1) == '\r') {
+			end--;
+		}
+		for (int i = start; i < end; i++) {
+			if (buf.get(i) == '\r') {
+				return true;
+			}
+		}
+		return m_automaton.containsAny(buf, start, end);
+	}
+}
@@ -18,13 +18,23 @@ package com.clustercontrol.agent.log;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.clustercontrol.agent.util.MonitorStringRuleSet;
 import com.clustercontrol.agent.util.MonitorStringUtil;
 import com.clustercontrol.agent.util.RandomAccessFileWrapper;
 import com.clustercontrol.bean.PriorityConstant;
@@ -33,6 +43,9 @@ import com.clustercontrol.ws.monitor.MonitorInfo;
 
 /**
  * ログファイル監視<BR>
+ *
+ * ファイル(エンコーディング、改行コードごと)に1つ生成し、読み込んだ行を
+ * このファイルを監視するすべての監視設定に渡す。
  */
 public class LogfileMonitor {
 
@@ -53,37 +66,82 @@ public class LogfileMonitor {
 	private long m_lastDataCheck = System.currentTimeMillis(); // 最終詳細チェック（冒頭データ比較）実行時刻
 	private boolean m_readTopFlag = true;
 
+	// 監視設定の反映はログファイル監視スレッドから、読み込みはワーカーから行われる
 	private String m_filePath;
-	private String m_fileEncoding;
-	private String m_fileReturnCode;
+	private volatile String m_fileEncoding;
+	private volatile String m_fileReturnCode;
 	private RandomAccessFileWrapper m_fr = null;
 	private long m_filesize = 0;
-	private long n_unchanged_stats = 0; // ファイルチェック時に、ファイルに変更がなかった回数
-	private byte[] m_carryOverBuf = new byte[0]; // 文字化け対策用に繰り越すバッファ
-
-	private MonitorInfo m_monitorInfo = null;
+	private boolean m_readPending = false; // 読み込みの上限に達して未読分が残っている場合はtrue
+	private long m_unchangedSince = System.currentTimeMillis(); // ファイルサイズが変わらなくなった時刻(呼び出し間隔が一定でないため時刻で判定する)
+	private ByteBuffer m_readBuf = null; // 読み込みバッファ(文字化け対策用に最後の改行コード以降は先頭に詰めて繰り越す)
+	private boolean m_lineTooLong = false; // 上限を超えた行の残りを読み飛ばしている場合はtrue
+	private CharBuffer m_charBuf = null; // 文字列に変換したバッファ(1行分ずつ変換する場合は1行分、ストリームで変換する場合は最後の改行コード以降を繰り越す)
+
+	// エンコーディングに応じた行の扱い(エンコーディングが変わったら作り直す)
+	private String m_lineEncoding = null;
+	private int m_lineLimit = 0; // 1行として繰り越す上限(byte)
+	private boolean m_byteLineCompatible = false; // 改行コードで区切ったバイト列ごとに文字列に変換できる場合はtrue
+	private CharsetDecoder m_decoder = null; // ファイルごとのデコーダ(エンコーディングが不正な場合はnull)
+
+	// このファイルを監視する監視設定(ワーカーのみで参照する)
+	private Subscriber[] m_subscribers = new Subscriber[0];
+	private long m_minStartOffset = 0; // 監視設定の読み込み開始位置の最小値
+	// ログファイル監視スレッドから設定され、次回の監視で反映する監視設定
+	private final AtomicReference<List<Subscriber>> m_pendingSubscribers = new AtomicReference<List<Subscriber>>();
+	private long m_bufOffset = 0; // 処理中のバッファの先頭のファイル上の位置
 
 	private char m_lineSeparator;
 	private String m_lineSeparatorString;
 
+	// 文字列に変換する前に行を絞り込むフィルタ(ルールセットかエンコーディングが変わったら作り直す)
+	private LogfileLinePrefilter m_prefilter = null;
+	private List<MonitorStringRuleSet> m_prefilterRuleSets = null;
+	private String m_prefilterEncoding = null;
+
+	// まとめてパターンマッチするために溜めている行と、行末のファイル上の位置(monitor.logfile.match.parallelismが2以上の場合)
+	private final ArrayList<String> m_pendingLines = new ArrayList<String>();
+	private long[] m_pendingLineEnds = new long[256];
+
+	/** 監視設定の読み込み開始位置が未定(初回オープン時に決める) */
+	private static final long START_OFFSET_UNRESOLVED = -1L;
+
+	/**
+	 * ファイルを監視する監視設定<BR>
+	 *
+	 * 監視設定ごとに読み込み開始位置を持ち、この位置以降で終わる行のみを渡す。
+	 * 既に読み込み中のファイルに監視設定が追加された場合も、
+	 * 監視設定ごとのファイルを先頭から読むか末尾から読むかの扱いを変えないため。
+	 */
+	public static class Subscriber {
+		private final MonitorInfo monitorInfo;
+		private final boolean readTopFlag;
+		private long startOffset = START_OFFSET_UNRESOLVED;
+
+		/**
+		 * @param monitorInfo 監視設定
+		 * @param readTopFlag ファイルを先頭から読む場合はtrue
+		 */
+		public Subscriber(MonitorInfo monitorInfo, boolean readTopFlag) {
+			this.monitorInfo = monitorInfo;
+			this.readTopFlag = readTopFlag;
+		}
+	}
+
 
 	/**
 	 * コンストラクタ
 	 * 
 	 * @param path
 	 *            転送対象ログファイル
-	 * @param readTopFlag
-	 *            最初にファイルをチェック
 	 *  @param fileEncoding
 	 *  		　ログファイルエンコーディング
 	 */
-	public LogfileMonitor(String path, boolean readTopFlag, String fileEncoding, String fileReturnCode, MonitorInfo monitorInfo) {
+	public LogfileMonitor(String path, String fileEncoding, String fileReturnCode) {
 		m_filePath = path;
 		m_fileEncoding = fileEncoding;
-		m_readTopFlag = readTopFlag;
 		m_firstOpenStatus = false;
 		m_syslog = new LoggerSyslog();
-		m_monitorInfo = monitorInfo;
 
 		m_fileReturnCode = fileReturnCode;
 		
@@ -96,6 +154,10 @@ public class LogfileMonitor {
 		}
 	}
 
+	public String getFilePath() {
+		return m_filePath;
+	}
+
 	public String getFileEncoding() {
 		return m_fileEncoding;
 	}
@@ -112,8 +174,108 @@ public class LogfileMonitor {
 		this.m_fileReturnCode = fileReturnCode;
 	}
 
-	public void setMonitor(MonitorInfo monitorInfo) {
-		this.m_monitorInfo = monitorInfo;
+	/**
+	 * このファイルを監視する監視設定を設定する(次回の監視から反映する)
+	 * @param subscribers 監視設定
+	 */
+	public void setMonitors(List<Subscriber> subscribers) {
+		m_pendingSubscribers.set(subscribers);
+	}
+
+	/**
+	 * 設定された監視設定を反映する<BR>
+	 *
+	 * 既存の監視設定は読み込み開始位置を引き継ぐ。
+	 * 追加された監視設定は、初回オープン前であればオープン時に、
+	 * オープン後であれば、先頭から読む場合は未読分から、末尾から読む場合は現在のファイルの末尾から読み込む。
+	 */
+	private void applySubscribers() {
+		List<Subscriber> subscribers = m_pendingSubscribers.getAndSet(null);
+		if (subscribers == null) {
+			return;
+		}
+		// 溜めている行は変更前の監視設定でパターンマッチする
+		flushLines();
+		HashMap<String, Subscriber> oldMap = new HashMap<String, Subscriber>();
+		for (Subscriber subscriber : m_subscribers) {
+			oldMap.put(subscriber.monitorInfo.getMonitorId(), subscriber);
+		}
+
+		boolean readTopFlag = false;
+		Subscriber[] newSubscribers = new Subscriber[subscribers.size()];
+		for (int i = 0; i < newSubscribers.length; i++) {
+			Subscriber subscriber = subscribers.get(i);
+			Subscriber old = oldMap.get(subscriber.monitorInfo.getMonitorId());
+			if (old != null) {
+				subscriber.startOffset = old.startOffset;
+			} else if (!m_initFlag) {
+				subscriber.startOffset = subscriber.readTopFlag ? 0 : getCurrentFileSize();
+				m_log.info("applySubscribers() : " + m_filePath + " add monitorId=" + subscriber.monitorInfo.getMonitorId()
+						+ ", startOffset=" + subscriber.startOffset);
+			}
+			readTopFlag |= subscriber.readTopFlag;
+			newSubscribers[i] = subscriber;
+		}
+		m_subscribers = newSubscribers;
+		if (m_initFlag) {
+			// 初回オープン前は、いずれかの監視設定が先頭から読む場合に先頭から読む
+			m_readTopFlag = readTopFlag;
+		}
+		updateMinStartOffset();
+	}
+
+	private long getCurrentFileSize() {
+		if (m_fr == null) {
+			return 0;
+		}
+		try {
+			return m_fr.length();
+		} catch (IOException e) {
+			m_log.warn("getCurrentFileSize() : " + m_filePath + " " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * ファイルをオープンした時に、監視設定の読み込み開始位置を決める
+	 * @param init 初回のオープンの場合はtrue
+	 */
+	private void resolveStartOffsets(boolean init) {
+		long fileSize = getCurrentFileSize();
+		for (Subscriber subscriber : m_subscribers) {
+			if (init && subscriber.startOffset == START_OFFSET_UNRESOLVED) {
+				subscriber.startOffset = subscriber.readTopFlag ? 0 : fileSize;
+			} else {
+				// 再オープンしたファイルは、すべての監視設定が読み込み位置以降を読む
+				subscriber.startOffset = 0;
+			}
+		}
+		updateMinStartOffset();
+	}
+
+	/**
+	 * ローテート・切り詰めで先頭から読み直す場合に、すべての監視設定の読み込み開始位置を先頭にする
+	 */
+	private void resetStartOffsets() {
+		for (Subscriber subscriber : m_subscribers) {
+			subscriber.startOffset = 0;
+		}
+		m_minStartOffset = 0;
+	}
+
+	private void updateMinStartOffset() {
+		long min = Long.MAX_VALUE;
+		for (Subscriber subscriber : m_subscribers) {
+			min = Math.min(min, subscriber.startOffset);
+		}
+		m_minStartOffset = m_subscribers.length == 0 ? 0 : min;
+	}
+
+	/**
+	 * 前回の監視で読み込みの上限に達し、未読分が残っているかどうか
+	 */
+	public boolean isReadPending() {
+		return m_readPending;
 	}
 
 	public void clean() {
@@ -128,10 +290,13 @@ public class LogfileMonitor {
 	public void run() {
 		m_log.debug("monitor start.  logfile : " + m_filePath
 				+ "  syslog encoding : " + System.getProperty("file.encoding"));
+		m_readPending = false;
+		applySubscribers();
 		// ファイルオープン
 		File file = new File(m_filePath);
 
 		if (m_fr == null) {
+			boolean init = m_initFlag;
 			if (m_initFlag) {
 				// 初回読み込みでreadTopFlagがtrueの時は最初から読む。
 				if (m_readTopFlag) {
@@ -157,6 +322,7 @@ public class LogfileMonitor {
 			if (m_fr == null) {
 				return;
 			}
+			resolveStartOffsets(init);
 		}
 
 		boolean readSuccessFlg = true; // 増加分読み込み成功フラグ
@@ -169,9 +335,9 @@ public class LogfileMonitor {
 				/** ログローテートを判定するフラグ */
 				boolean logrotateFlag = false;			// ローテートフラグ
 
-				int runInterval = LogfileMonitorManager.getRunInterval();
 				// ファイルサイズがm_unchangedStatsPeriod秒間以上変わらなかったら、ファイル切り替わりチェック
-				if ((++n_unchanged_stats * runInterval) < LogfileMonitorConfig.unchangedStatsPeriod) {
+				// (変更通知で監視する場合は呼び出し間隔が一定ではないため、回数ではなく経過時間で判定する)
+				if (System.currentTimeMillis() - m_unchangedSince < LogfileMonitorConfig.unchangedStatsPeriod) {
 					return;
 				}
 				m_log.debug("run() : " + m_filePath + " check log rotation");
@@ -288,135 +454,62 @@ public class LogfileMonitor {
 						tmp_filesize = m_fr.length();
 						m_filesize = 0;
 						// carryOver = "";
-						m_carryOverBuf = new byte[0];
+						resetCarryOver();
+						resetStartOffsets();
 					}
 
 				}
-				n_unchanged_stats = 0;
 			}
 
-			n_unchanged_stats = 0;
+			m_unchangedSince = System.currentTimeMillis();
 
 			if (m_filesize < tmp_filesize) {
 				// デバッグログ
 				m_log.debug("run() : " + m_filePath +
 						" filesize " + m_filesize + " tmp_filesize " + tmp_filesize);
 
+				// 1回の監視で読み込む上限(他のファイルの監視を待たせないため)
+				long budgetEnd = Long.MAX_VALUE;
+				if (LogfileMonitorConfig.readBudget > 0) {
+					budgetEnd = m_fr.getFilePointer() + LogfileMonitorConfig.readBudget;
+				}
+
+				// 未読分が大きい場合は、ファイルをマッピングして末尾付近まで読み進める
+				readSuccessFlg = false;
+				catchUp(tmp_filesize, budgetEnd);
+				flushLines();
+				readSuccessFlg = true;
+
 				while (true) {
+					if (m_fr.getFilePointer() >= budgetEnd) {
+						// 残りは次回の監視で読み込む
+						m_readPending = true;
+						break;
+					}
 					readSuccessFlg = false;
-					byte[] cbuf = new byte[1024]; // ファイルからの読み出し分を保持するバッファ
-					int read = m_fr.read(cbuf);
+					ByteBuffer buf = getReadBuffer(); // 前回の繰越分の後ろに読み込む
+					int carryOver = buf.position();
+					m_bufOffset = m_fr.getFilePointer() - carryOver;
+					int read = m_fr.read(buf);
 					readSuccessFlg = true;
 					if (read == -1) {
 						break;
 					}
 
-					// //
-					// UTF-8を含むログで文字化けが発生するため修正
-					//
-					// 最後の改行コードを検索し、最後の改行コード以降は次回に繰越て処理する。
-					// carryOverStartには改行コードの次のコードのインデックスが格納される。
-					int carryOverStart = read;
-					boolean returnCode = false;
-					for (int i = read - 1; i >= 0; i--) {
-						if (cbuf[i] == m_lineSeparator) {
-							carryOverStart = i + 1;
-							returnCode = true;
-							break;
-						}
-					}
-
 					// デバッグログ
 					m_log.debug("run() : " + m_filePath + " read " + read +
-							"    carryOverStart " + carryOverStart);
-
-					// 今回出力処理する分のバッファを作成
-					// 前回の繰越分と今回ファイルから読み出したデータのうち
-					// 最後の改行までのデータをマージする。
-					byte[] appendedBuf = new byte[m_carryOverBuf.length + carryOverStart];
-					ByteBuffer.wrap(m_carryOverBuf).get(appendedBuf, 0,
-							m_carryOverBuf.length);
-					ByteBuffer.wrap(cbuf).get(appendedBuf,
-							m_carryOverBuf.length, carryOverStart);
-
-					// デバッグログ
-					m_log.debug("run() : " + m_filePath + " appendedBuf size " + appendedBuf.length);
-
-					// 改行コードが含まれない場合
-					if (!returnCode) {
-						// 今回ファイルから読み込んだものを含めて全て次回へ繰り越す。
-						// 出力処理は実施しない。
-						m_log.debug("run() : " + m_filePath
-								+ " return code is not exist");
-						m_carryOverBuf = new byte[appendedBuf.length];
-						ByteBuffer.wrap(appendedBuf).get(m_carryOverBuf);
-						
-						// 繰越データが非常に長い場合はバッファをカットする
-						if(m_carryOverBuf != null  
-								&& m_carryOverBuf.length > MonitorStringUtil._messageLimitLength){
-							m_log.info("run() : " + m_filePath + " carryOverBuf size = " + m_carryOverBuf.length + ". carryOverBuf is too long. it cut down .(see monitor.logfile.message.length)");
-							
-							byte[] tmpBuf = new byte[MonitorStringUtil._messageLimitLength];
-							ByteBuffer.wrap(m_carryOverBuf,0,MonitorStringUtil._messageLimitLength).get(tmpBuf);
-							m_carryOverBuf = tmpBuf;
-						}
-						continue;
-					}
-
-					// 繰越データ用バッファを作成
-					m_carryOverBuf = new byte[(read - carryOverStart)];
-					try {
-						// 最後が改行コード以降にデータがある場合は、次回の処理にまわす
-						if (read > carryOverStart) {
-							// デバッグログ
-							if (m_log.isDebugEnabled()) {
-								m_log.debug("run() : " + m_filePath
-										+ " carryOverBuf size "
-										+ m_carryOverBuf.length);
-							}
-							ByteBuffer.wrap(cbuf, carryOverStart,
-									m_carryOverBuf.length).get(m_carryOverBuf);
-						}
-					} catch (Exception e) {
-						m_log.error("run() : " + e.getMessage(), e);
-					}
-					
-					try {
-						// 加分読み込み
-						String tmpString = new String(appendedBuf, 0,
-								appendedBuf.length, this.m_fileEncoding);
-						String[] result = tmpString.split(m_lineSeparatorString);
-						// デバッグログ
-						if (m_log.isDebugEnabled()) {
-							m_log.debug("run() : " + m_filePath + " " + tmpString);
-							m_log.debug("run() : " + m_filePath + " size "
-									+ tmpString.length());
-							m_log.debug("run() : " + m_filePath + " result size "
-									+ result.length);
-						}
+							"    carryOver " + carryOver);
 
-						// 読み込み文字列のサイズが0でない場合は処理する
-						if (tmpString.length() != 0) {
-							for (String res : result) {
-								// 旧バージョンとの互換性のため、syslogでも飛ばせるようにする。
-								if (m_syslog.isValid()) {
-									// v3.2 mode
-									String logPrefix = LogfileMonitorConfig.program + "(" + m_filePath + "):";
-									m_syslog.log(logPrefix + res);
-								} else {
-									// v4.0 mode
-									MonitorStringUtil.patternMatch(MonitorStringUtil.formatLine(res), m_monitorInfo, m_filePath);
-								}
-							}
-						}
-
-					} catch (UnsupportedEncodingException e) {
-						m_log.error("run() : " + m_filePath + " "
-								+ e.getMessage());
-					}
+					processBuffer(buf, carryOver);
+					flushLines();
 				}
 
-				m_filesize = tmp_filesize;
+				if (m_readPending) {
+					m_filesize = m_fr.getFilePointer();
+					m_log.debug("run() : " + m_filePath + " read budget exceeded. FilePointer = " + m_filesize);
+				} else {
+					m_filesize = tmp_filesize;
+				}
 				if(m_log.isDebugEnabled()){
 					m_log.debug("run() : " + m_filePath + " filesize = " + m_filesize + ", FilePointer = " + m_fr.getFilePointer());
 				}
@@ -426,7 +519,8 @@ public class LogfileMonitor {
 				m_log.info(m_filePath + " : file size becomes small");
 				m_fr.seek(0);
 				m_filesize = 0;
-				m_carryOverBuf = new byte[0];
+				resetCarryOver();
+				resetStartOffsets();
 			}
 
 		} catch (IOException e) {
@@ -455,6 +549,509 @@ public class LogfileMonitor {
 		}
 	}
 
+	/**
+	 * 現在の監視設定とエンコーディングに対応するフィルタを返す
+	 * @return フィルタ。使用できない場合はnull
+	 */
+	private LogfileLinePrefilter getPrefilter() {
+		// syslog転送時はすべての行を転送する
+		if (m_syslog.isValid()) {
+			return null;
+		}
+		// いずれかの監視設定にマッチし得る行を候補とする
+		ArrayList<MonitorStringRuleSet> ruleSets = new ArrayList<MonitorStringRuleSet>(m_subscribers.length);
+		for (Subscriber subscriber : m_subscribers) {
+			ruleSets.add(MonitorStringRuleSet.get(subscriber.monitorInfo));
+		}
+		if (!isSameRuleSets(ruleSets, m_prefilterRuleSets) || !m_fileEncoding.equals(m_prefilterEncoding)) {
+			m_prefilter = LogfileLinePrefilter.create(ruleSets, m_fileEncoding);
+			m_prefilterRuleSets = ruleSets;
+			m_prefilterEncoding = m_fileEncoding;
+			m_log.debug("getPrefilter() : " + m_filePath + " prefilter=" + (m_prefilter != null));
+		}
+		return m_prefilter;
+	}
+
+	private static boolean isSameRuleSets(List<MonitorStringRuleSet> ruleSets1, List<MonitorStringRuleSet> ruleSets2) {
+		if (ruleSets2 == null || ruleSets1.size() != ruleSets2.size()) {
+			return false;
+		}
+		for (int i = 0; i < ruleSets1.size(); i++) {
+			if (ruleSets1.get(i) != ruleSets2.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 読み込みバッファを返す。<BR>
+	 *
+	 * バッファの先頭から現在位置までは前回の繰越分となる。
+	 */
+	private ByteBuffer getReadBuffer() {
+		updateLineEncoding();
+		int capacity = Math.max(LogfileMonitorConfig.readBufferSize, m_lineLimit * 2);
+		if (m_readBuf == null) {
+			m_readBuf = ByteBuffer.allocate(capacity);
+		} else if (m_readBuf.capacity() < capacity) {
+			ByteBuffer newBuf = ByteBuffer.allocate(capacity);
+			m_readBuf.flip();
+			newBuf.put(m_readBuf);
+			m_readBuf = newBuf;
+		}
+		m_readBuf.limit(m_readBuf.capacity());
+		return m_readBuf;
+	}
+
+	/**
+	 * 繰越分を破棄する
+	 */
+	private void resetCarryOver() {
+		if (m_readBuf != null) {
+			m_readBuf.clear();
+		}
+		if (m_charBuf != null) {
+			m_charBuf.clear();
+		}
+		if (m_decoder != null) {
+			m_decoder.reset();
+		}
+		m_lineTooLong = false;
+	}
+
+	/**
+	 * エンコーディングに応じた行の扱いを設定する
+	 */
+	private void updateLineEncoding() {
+		if (m_fileEncoding.equals(m_lineEncoding)) {
+			return;
+		}
+		// 1行は文字数でmonitor.message.lengthまで使用するため、1文字の最大バイト数分を繰り越す
+		int maxBytesPerChar = 4;
+		boolean compatible = false;
+		CharsetDecoder decoder = null;
+		try {
+			Charset charset = Charset.forName(m_fileEncoding);
+			// new String(byte[], String)と同様に、不正なバイト列は置換文字にする
+			decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			compatible = LogfileLinePrefilter.isAsciiCompatible(charset);
+			maxBytesPerChar = (int) Math.ceil(charset.newEncoder().maxBytesPerChar());
+		} catch (RuntimeException e) {
+			m_log.debug("updateLineEncoding() : " + m_filePath + " " + e.getMessage());
+		}
+		m_lineEncoding = m_fileEncoding;
+		m_lineLimit = MonitorStringUtil._messageLimitLength * maxBytesPerChar;
+		m_byteLineCompatible = compatible;
+		m_decoder = decoder;
+		// 繰り越した文字は別のエンコーディングで変換したものなので破棄する
+		m_charBuf = CharBuffer.allocate(Math.max(LogfileMonitorConfig.readBufferSize, m_lineLimit * 2));
+		m_lineTooLong = false;
+		m_log.debug("updateLineEncoding() : " + m_filePath + " encoding=" + m_lineEncoding
+				+ ", lineLimit=" + m_lineLimit + ", byteLineCompatible=" + m_byteLineCompatible);
+	}
+
+	/**
+	 * 未読分が閾値以上の場合、ファイルを一定の単位でメモリにマッピングし、
+	 * マッピング上で行を処理して未読分が閾値未満になるまで読み進める。<BR>
+	 *
+	 * 処理後のファイルポインタは最後に処理した行の次となるため、残りは通常の読み込みで処理する。
+	 *
+	 * @param fileSize ファイルサイズ
+	 * @param budgetEnd 読み込みの上限の位置(この位置以降はマッピングを開始しない)
+	 */
+	private void catchUp(long fileSize, long budgetEnd) throws IOException {
+		updateLineEncoding();
+		long threshold = LogfileMonitorConfig.catchUpThreshold;
+		long pos = m_fr.getFilePointer();
+		if (threshold <= 0 || !m_byteLineCompatible || !m_fr.isMappable() || fileSize - pos < threshold) {
+			return;
+		}
+
+		// 前回の繰越分は、ファイルから読み直す
+		long start = pos;
+		ByteBuffer carryOver = getReadBuffer();
+		if (!m_lineTooLong) {
+			start = pos - carryOver.position();
+			carryOver.clear();
+		}
+
+		m_log.info("run() : " + m_filePath + " catch-up start. position=" + start + ", filesize=" + fileSize);
+		long startTime = System.currentTimeMillis();
+		long begin = start;
+		LogfileLinePrefilter prefilter = getPrefilter();
+		while (fileSize - start >= threshold && start < budgetEnd) {
+			// 処理中にファイルが切り詰められた場合(copytruncateによるローテート等)、
+			// 終端を超えた位置を読むとSIGBUSになるため、マッピングの前にサイズを確認し直す
+			fileSize = Math.min(fileSize, m_fr.length());
+			if (fileSize - start < threshold) {
+				break;
+			}
+			int size = (int) Math.min(LogfileMonitorConfig.catchUpWindow, fileSize - start);
+			MappedByteBuffer map = null;
+			try {
+				map = m_fr.map(start, size);
+			} catch (IOException e) {
+				// マッピングできない場合は、通常の読み込みで処理する
+				m_log.warn("run() : " + m_filePath + " map failed. " + e.getMessage());
+				break;
+			}
+			int scanned;
+			try {
+				scanned = scanWindow(map, size, start, carryOver, prefilter);
+			} catch (InternalError e) {
+				// 確認後に切り詰められた場合は、SIGBUSがInternalErrorとして通知される。
+				// この単位の先頭から通常の読み込みで処理する(切り詰めの検出も通常の読み込みで行う)
+				m_log.warn("run() : " + m_filePath + " access to the mapped file failed. " + e.getMessage());
+				break;
+			}
+			if (scanned < 0) {
+				break;
+			}
+			start += scanned;
+		}
+		m_fr.seek(start);
+
+		long bytes = start - begin;
+		long time = System.currentTimeMillis() - startTime;
+		m_log.info("run() : " + m_filePath + " catch-up end. position=" + start + ", read " + bytes + " bytes in " + time + " ms ("
+				+ String.format("%.1f", bytes / 1048576.0 / Math.max(time, 1) * 1000) + " MB/s)");
+	}
+
+	/**
+	 * マッピングした1単位の最後の改行コードまでを処理する
+	 * @return 処理したサイズ(改行コードがないため通常の読み込みで処理する場合は-1)
+	 */
+	private int scanWindow(MappedByteBuffer map, int size, long start, ByteBuffer carryOver, LogfileLinePrefilter prefilter) {
+		// 最後の改行コードを検索する
+		int last = -1;
+		for (int i = size - 1; i >= 0; i--) {
+			if (map.get(i) == m_lineSeparator) {
+				last = i;
+				break;
+			}
+		}
+		if (last < 0) {
+			// 1行がマッピングの単位より長い場合は、通常の読み込みで処理する
+			m_log.info("run() : " + m_filePath + " return code is not exist in " + size + " bytes");
+			return -1;
+		}
+
+		int lineStart = 0;
+		if (m_lineTooLong) {
+			// 上限を超えた行は、繰り越した上限までのデータを1行として処理する
+			int first = 0;
+			while (map.get(first) != m_lineSeparator) {
+				first++;
+			}
+			processLine(carryOver, 0, m_lineLimit, start + first, prefilter);
+			carryOver.clear();
+			m_lineTooLong = false;
+			lineStart = first + 1;
+		}
+		m_bufOffset = start;
+		processLines(map, lineStart, last + 1, prefilter);
+		return last + 1;
+	}
+
+	/**
+	 * 読み込みバッファ内の最後の改行コードまでを処理し、最後の改行コード以降は先頭に詰めて次回に繰り越す
+	 * @param buf 読み込みバッファ(現在位置までが有効なデータ)
+	 * @param carryOver 前回の繰越分のサイズ(繰越分に改行コードは含まれない)
+	 */
+	private void processBuffer(ByteBuffer buf, int carryOver) {
+		if (m_decoder == null) {
+			// 変換できないエンコーディングの場合は、読み込んだデータを破棄する
+			m_log.error("run() : " + m_filePath + " unsupported encoding "
+					+ m_fileEncoding);
+			buf.clear();
+			return;
+		}
+		if (!m_byteLineCompatible) {
+			processChars(buf);
+			return;
+		}
+
+		byte[] array = buf.array();
+		int limit = buf.position();
+
+		// 最後の改行コードを検索する
+		int last = -1;
+		for (int i = limit - 1; i >= carryOver; i--) {
+			if (array[i] == m_lineSeparator) {
+				last = i;
+				break;
+			}
+		}
+
+		// 改行コードが含まれない場合
+		if (last < 0) {
+			// 今回ファイルから読み込んだものを含めて全て次回へ繰り越す。
+			// 出力処理は実施しない。
+			m_log.debug("run() : " + m_filePath + " return code is not exist");
+			if (!m_lineTooLong && limit > m_lineLimit) {
+				m_log.info("run() : " + m_filePath + " carryOverBuf size = " + limit + ". carryOverBuf is too long. it cut down .(see monitor.logfile.message.length)");
+				m_lineTooLong = true;
+			}
+			// 繰越データが非常に長い場合は上限以降を読み捨てる
+			buf.position(m_lineTooLong ? m_lineLimit : limit);
+			return;
+		}
+
+		LogfileLinePrefilter prefilter = getPrefilter();
+		int start = 0;
+		if (m_lineTooLong) {
+			// 上限を超えた行は、繰り越した上限までのデータを1行として処理する
+			int first = carryOver;
+			while (array[first] != m_lineSeparator) {
+				first++;
+			}
+			processLine(buf, 0, m_lineLimit, m_bufOffset + first, prefilter);
+			m_lineTooLong = false;
+			start = first + 1;
+		}
+		processLines(buf, start, last + 1, prefilter);
+
+		// 最後の改行コード以降にデータがある場合は、次回の処理にまわす
+		int remain = limit - (last + 1);
+		System.arraycopy(array, last + 1, array, 0, remain);
+		if (remain > m_lineLimit) {
+			m_log.info("run() : " + m_filePath + " carryOverBuf size = " + remain + ". carryOverBuf is too long. it cut down .(see monitor.logfile.message.length)");
+			m_lineTooLong = true;
+			remain = m_lineLimit;
+		}
+		buf.clear();
+		buf.position(remain);
+		if (m_log.isDebugEnabled()) {
+			m_log.debug("run() : " + m_filePath + " carryOverBuf size " + remain);
+		}
+	}
+
+	/**
+	 * 改行コードで終わる範囲を行ごとに処理する
+	 * @param buf バッファ
+	 * @param start 開始位置
+	 * @param end 終了位置(直前が改行コード)
+	 * @param prefilter フィルタ(使用しない場合はnull)
+	 */
+	private void processLines(ByteBuffer buf, int start, int end, LogfileLinePrefilter prefilter) {
+		// String.splitと同様に、末尾の空行は処理しない
+		while (end > start && (end - 1 == start || buf.get(end - 2) == m_lineSeparator)) {
+			end--;
+		}
+
+		int lines = 0;
+		int lineStart = start;
+		for (int i = start; i < end; i++) {
+			if (buf.get(i) != m_lineSeparator) {
+				continue;
+			}
+			lines++;
+			processLine(buf, lineStart, i, m_bufOffset + i, prefilter);
+			lineStart = i + 1;
+		}
+		if (m_log.isDebugEnabled()) {
+			m_log.debug("run() : " + m_filePath + " result size " + lines);
+		}
+	}
+
+	/**
+	 * 1行分のバイト列を処理する。マッチし得ない行は文字列に変換しない。<BR>
+	 *
+	 * 1行は上限(m_lineLimit)までを文字列に変換する。
+	 *
+	 * @param buf バッファ
+	 * @param start 行の開始位置
+	 * @param end 行の終了位置(改行コードを含まない)
+	 * @param lineEnd 行末の改行コードのファイル上の位置
+	 * @param prefilter フィルタ(使用しない場合はnull)
+	 */
+	private void processLine(ByteBuffer buf, int start, int end, long lineEnd, LogfileLinePrefilter prefilter) {
+		// いずれの監視設定も読み込み開始前の行
+		if (lineEnd < m_minStartOffset) {
+			return;
+		}
+		if (prefilter != null && !prefilter.isCandidate(buf, start, end)) {
+			return;
+		}
+
+		// バッファ上の1行分をそのまま変換する
+		ByteBuffer in = buf.duplicate();
+		in.limit(start + Math.min(end - start, m_lineLimit));
+		in.position(start);
+		m_charBuf.clear();
+		m_decoder.reset();
+		m_decoder.decode(in, m_charBuf, true);
+		m_decoder.flush(m_charBuf);
+		m_charBuf.flip();
+		matchLine(m_charBuf.toString(), lineEnd);
+	}
+
+	/**
+	 * 読み込みバッファを前回の続きから文字列に変換し、改行コードまでの各行を処理する。<BR>
+	 *
+	 * 改行コードのバイトが他の文字に含まれ得るエンコーディング(UTF-16など)で使用する。
+	 * 文字の途中までのバイト列は読み込みバッファに、最後の改行コード以降の文字は文字列のバッファに繰り越す。
+	 *
+	 * @param buf 読み込みバッファ(現在位置までが有効なデータ)
+	 */
+	private void processChars(ByteBuffer buf) {
+		// 文字列に変換した後はファイル上の位置が分からないため、読み込んだ範囲の最後の位置を行の位置とする
+		long chunkEnd = m_bufOffset + buf.position() - 1;
+		buf.flip();
+		while (true) {
+			CoderResult result = m_decoder.decode(buf, m_charBuf, false);
+			processCharLines(chunkEnd);
+			// 文字列のバッファが一杯の場合は、行を処理して空いた分に続きを変換する
+			if (!result.isOverflow()) {
+				break;
+			}
+		}
+		buf.compact();
+		if (m_log.isDebugEnabled()) {
+			m_log.debug("run() : " + m_filePath + " carryOverBuf size " + buf.position() + ", carryOverChars size " + m_charBuf.position());
+		}
+	}
+
+	/**
+	 * 文字列のバッファ内の最後の改行コードまでを処理し、最後の改行コード以降は先頭に詰めて次回に繰り越す
+	 * @param chunkEnd 読み込んだ範囲の最後のファイル上の位置
+	 */
+	private void processCharLines(long chunkEnd) {
+		char[] array = m_charBuf.array();
+		int limit = m_charBuf.position();
+
+		// 最後の改行コードを検索する
+		int last = -1;
+		for (int i = limit - 1; i >= 0; i--) {
+			if (array[i] == m_lineSeparator) {
+				last = i;
+				break;
+			}
+		}
+
+		if (last >= 0) {
+			// String.splitと同様に、末尾の空行は処理しない
+			int trailing = last;
+			while (trailing >= 0 && array[trailing] == m_lineSeparator) {
+				trailing--;
+			}
+			int emptyFrom = trailing < 0 ? 0 : trailing + 2;
+
+			int start = 0;
+			int lines = 0;
+			for (int i = 0; i <= last; i++) {
+				if (array[i] != m_lineSeparator) {
+					continue;
+				}
+				if (m_lineTooLong) {
+					// 上限を超えた行は、繰り越した上限までのデータを1行として処理する
+					matchLine(new String(array, 0, m_lineLimit), chunkEnd);
+					m_lineTooLong = false;
+				} else if (i < emptyFrom) {
+					matchLine(new String(array, start, i - start), chunkEnd);
+				}
+				lines++;
+				start = i + 1;
+			}
+			if (m_log.isDebugEnabled()) {
+				m_log.debug("run() : " + m_filePath + " result size " + lines);
+			}
+
+			// 最後の改行コード以降を先頭に詰める
+			int remain = limit - (last + 1);
+			System.arraycopy(array, last + 1, array, 0, remain);
+			limit = remain;
+		} else if (m_lineTooLong) {
+			// 上限を超えた行の残りは読み捨てる
+			limit = m_lineLimit;
+		}
+
+		if (!m_lineTooLong && limit > m_lineLimit) {
+			m_log.info("run() : " + m_filePath + " carryOverBuf size = " + limit + ". carryOverBuf is too long. it cut down .(see monitor.logfile.message.length)");
+			m_lineTooLong = true;
+			limit = m_lineLimit;
+		}
+		m_charBuf.clear();
+		m_charBuf.position(limit);
+	}
+
+	/**
+	 * 1行分の文字列を処理する
+	 * @param line 1行分の文字列
+	 * @param lineEnd 行末の改行コードのファイル上の位置
+	 */
+	private void matchLine(String line, long lineEnd) {
+		String formatLine = null;
+		for (Subscriber subscriber : m_subscribers) {
+			// 監視設定の読み込み開始前に書き込まれた行は渡さない
+			if (lineEnd < subscriber.startOffset) {
+				continue;
+			}
+			// 旧バージョンとの互換性のため、syslogでも飛ばせるようにする。
+			if (m_syslog.isValid()) {
+				// v3.2 mode
+				String logPrefix = LogfileMonitorConfig.program + "(" + m_filePath + "):";
+				m_syslog.log(logPrefix + line);
+			} else {
+				// v4.0 mode
+				if (formatLine == null) {
+					formatLine = MonitorStringUtil.formatLine(line);
+				}
+				if (MonitorStringUtil.isParallelMatch()) {
+					// 溜めてまとめてパターンマッチする(全ての監視設定の分を1回で行う)
+					addPendingLine(formatLine, lineEnd);
+					return;
+				}
+				MonitorStringUtil.patternMatch(formatLine, subscriber.monitorInfo, m_filePath);
+			}
+		}
+	}
+
+	/**
+	 * まとめてパターンマッチする行を追加する。並列数分のブロックが溜まったらパターンマッチする。
+	 */
+	private void addPendingLine(String formatLine, long lineEnd) {
+		int size = m_pendingLines.size();
+		if (size == m_pendingLineEnds.length) {
+			m_pendingLineEnds = Arrays.copyOf(m_pendingLineEnds, size * 2);
+		}
+		m_pendingLines.add(formatLine);
+		m_pendingLineEnds[size] = lineEnd;
+		if (m_pendingLines.size() >= MonitorStringUtil._matchBlockSize * MonitorStringUtil._matchParallelism) {
+			flushLines();
+		}
+	}
+
+	/**
+	 * 溜めている行をまとめてパターンマッチする。
+	 * 送信の順番は1行ずつパターンマッチする場合と同じ。
+	 */
+	private void flushLines() {
+		int size = m_pendingLines.size();
+		if (size == 0) {
+			return;
+		}
+		try {
+			ArrayList<MonitorInfo> monitorInfoList = new ArrayList<MonitorInfo>(m_subscribers.length);
+			int[] fromIndex = new int[m_subscribers.length];
+			for (int m = 0; m < m_subscribers.length; m++) {
+				monitorInfoList.add(m_subscribers[m].monitorInfo);
+				// 監視設定の読み込み開始前に書き込まれた行は渡さない(行末の位置は昇順)
+				int from = 0;
+				while (from < size && m_pendingLineEnds[from] < m_subscribers[m].startOffset) {
+					from++;
+				}
+				fromIndex[m] = from;
+			}
+			MonitorStringUtil.patternMatch(m_pendingLines, monitorInfoList, fromIndex, m_filePath);
+		} finally {
+			m_pendingLines.clear();
+		}
+	}
+
 	/**
 	 * 監視管理情報へ通知
 	 * 
@@ -470,7 +1067,10 @@ public class LogfileMonitor {
 	 *            オリジナルメッセージ
 	 */
 	private void sendMessage(int priority, String app, String msgId, String msg, String msgOrg) {
-		LogfileMonitorManager.sendMessage(m_filePath, priority, app, msgId, msg, msgOrg, m_monitorInfo.getMonitorId());
+		// このファイルを監視するすべての監視設定に通知する
+		for (Subscriber subscriber : m_subscribers) {
+			LogfileMonitorManager.sendMessage(m_filePath, priority, app, msgId, msg, msgOrg, subscriber.monitorInfo.getMonitorId());
+		}
 	}
 
 	/**
@@ -35,6 +35,14 @@ public class LogfileMonitorConfig {
 
 	private static final String PROGRAM = "monitor.logfile.syslog.program";
 
+	private static final String READ_BUFFER_SIZE = "monitor.logfile.read.buffer.size";
+
+	private static final String CATCHUP_THRESHOLD = "monitor.logfile.catchup.threshold";
+
+	private static final String CATCHUP_WINDOW = "monitor.logfile.catchup.window";
+
+	private static final String READ_BUDGET = "monitor.logfile.read.budget";
+
 	/** ファイル変更チェック期間設定（ミリ秒） */
 	protected static int unchangedStatsPeriod = 0;
 
@@ -49,6 +57,18 @@ public class LogfileMonitorConfig {
 
 	protected static final String HINEMOS_LOG_AGENT = "hinemos_log_agent";
 
+	/** ファイル読み込みバッファサイズ（byte） */
+	protected static int readBufferSize = 65536;
+
+	/** 未読分がこのサイズ以上の場合に、ファイルをマッピングして読み込む（byte、0以下の場合は無効） */
+	protected static long catchUpThreshold = 16777216L;
+
+	/** ファイルをマッピングする単位（byte） */
+	protected static int catchUpWindow = 67108864;
+
+	/** 1回の監視で読み込む上限（byte、0以下の場合は無制限）。残りは他のファイルの後に読み込む */
+	protected static long readBudget = 67108864L;
+
 	/** ログ先頭に定義するプログラム名 */
 	protected static String program = HINEMOS_LOG_AGENT;
 
@@ -99,6 +119,52 @@ public class LogfileMonitorConfig {
 		}
 		m_log.debug(FILE_MAX_SIZE + " = " + fileMaxSize);
 
+		// ファイル読み込みバッファサイズ（byte）
+		String readBufferSizeStr = AgentProperties.getProperty(READ_BUFFER_SIZE, "65536");
+		m_log.info(READ_BUFFER_SIZE + " = " + readBufferSizeStr + " byte");
+		try {
+			int size = Integer.parseInt(readBufferSizeStr);
+			if (size > 0) {
+				readBufferSize = size;
+			}
+		} catch (NumberFormatException e) {
+			m_log.warn("LogfileManager() : " + READ_BUFFER_SIZE, e);
+		}
+		m_log.debug(READ_BUFFER_SIZE + " = " + readBufferSize);
+
+		// マッピング読み込みの閾値（byte）
+		String catchUpThresholdStr = AgentProperties.getProperty(CATCHUP_THRESHOLD, "16777216");
+		m_log.info(CATCHUP_THRESHOLD + " = " + catchUpThresholdStr + " byte");
+		try {
+			catchUpThreshold = Long.parseLong(catchUpThresholdStr);
+		} catch (NumberFormatException e) {
+			m_log.warn("LogfileManager() : " + CATCHUP_THRESHOLD, e);
+		}
+		m_log.debug(CATCHUP_THRESHOLD + " = " + catchUpThreshold);
+
+		// マッピングの単位（byte）
+		String catchUpWindowStr = AgentProperties.getProperty(CATCHUP_WINDOW, "67108864");
+		m_log.info(CATCHUP_WINDOW + " = " + catchUpWindowStr + " byte");
+		try {
+			int size = Integer.parseInt(catchUpWindowStr);
+			if (size > 0) {
+				catchUpWindow = size;
+			}
+		} catch (NumberFormatException e) {
+			m_log.warn("LogfileManager() : " + CATCHUP_WINDOW, e);
+		}
+		m_log.debug(CATCHUP_WINDOW + " = " + catchUpWindow);
+
+		// 1回の監視で読み込む上限（byte）
+		String readBudgetStr = AgentProperties.getProperty(READ_BUDGET, "67108864");
+		m_log.info(READ_BUDGET + " = " + readBudgetStr + " byte");
+		try {
+			readBudget = Long.parseLong(readBudgetStr);
+		} catch (NumberFormatException e) {
+			m_log.warn("LogfileManager() : " + READ_BUDGET, e);
+		}
+		m_log.debug(READ_BUDGET + " = " + readBudget);
+
 		// プログラム名を設定
 		program = AgentProperties.getProperty(PROGRAM, HINEMOS_LOG_AGENT);
 		if ("".equals(program)) {
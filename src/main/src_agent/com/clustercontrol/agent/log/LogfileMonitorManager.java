@@ -16,12 +16,27 @@
 package com.clustercontrol.agent.log;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,7 +61,8 @@ public class LogfileMonitorManager {
 	private static Log log = LogFactory.getLog(LogfileMonitorManager.class);
 
 	/** ファイルパスとファイルの読み込み状態を保持しているマップ */
-	//<monitorId + filePath, logFileMonitor>
+	// 同じファイルを監視する監視設定は1つのlogFileMonitorで読み込む
+	//<fileEncoding + fileReturnCode + filePath, logFileMonitor>
 	private static ConcurrentHashMap<String, LogfileMonitor> logfileMonitorCache =
 			new ConcurrentHashMap<String, LogfileMonitor>();
 
@@ -70,6 +86,24 @@ public class LogfileMonitorManager {
 	/** 監視可能ファイル数 */
 	private static int fileMax = 500;
 
+	/** ファイルの変更通知(WatchService)で監視するかどうか */
+	private static boolean watchEnable = false;
+
+	/** 変更通知で監視する場合に、全ファイルを確認する間隔 */
+	private static int watchInterval = 60000; // 60sec
+
+	/** ログファイル監視のワーカー数 */
+	private static int threadNum = 1;
+
+	/** ワーカーの統計情報を出力する間隔(0以下の場合は出力しない) */
+	private static int statsInterval = 600000; // 10min
+
+	/** ログファイル監視のワーカー(ワーカー数が1の場合はnullとし、ログファイル監視スレッドで実行する) */
+	private static LogfileWorker[] workers = null;
+
+	/** 監視設定が変更されたかどうか(変更通知で監視する場合に、次の確認で再読み込みする) */
+	private static volatile boolean monitorListChanged = false;
+
 	/** このエージェントの監視設定 */
 	private static ArrayList<MonitorInfo> monitorList = new ArrayList<MonitorInfo>();
 	
@@ -100,6 +134,36 @@ public class LogfileMonitorManager {
 			log.warn("LogfileThread : " + e.getMessage());
 		}
 		log.info(key1 + "=" + runInterval + ", " + key2 + "=" + fileMax);
+		String key3 = "monitor.logfile.filter.watch";
+		try {
+			String watchEnableStr = AgentProperties.getProperty(key3, Boolean.toString(watchEnable));
+			watchEnable = Boolean.parseBoolean(watchEnableStr);
+		} catch (Exception e) {
+			log.warn("LogfileThread : " + e.getMessage());
+		}
+		String key4 = "monitor.logfile.filter.watch.interval";
+		try {
+			String watchIntervalStr = AgentProperties.getProperty(key4, Integer.toString(watchInterval));
+			watchInterval = Integer.parseInt(watchIntervalStr);
+		} catch (Exception e) {
+			log.warn("LogfileThread : " + e.getMessage());
+		}
+		log.info(key3 + "=" + watchEnable + ", " + key4 + "=" + watchInterval);
+		String key5 = "monitor.logfile.filter.threads";
+		try {
+			String threadNumStr = AgentProperties.getProperty(key5, Integer.toString(threadNum));
+			threadNum = Math.max(1, Integer.parseInt(threadNumStr));
+		} catch (Exception e) {
+			log.warn("LogfileThread : " + e.getMessage());
+		}
+		String key6 = "monitor.logfile.filter.threads.stats.interval";
+		try {
+			String statsIntervalStr = AgentProperties.getProperty(key6, Integer.toString(statsInterval));
+			statsInterval = Integer.parseInt(statsIntervalStr);
+		} catch (Exception e) {
+			log.warn("LogfileThread : " + e.getMessage());
+		}
+		log.info(key5 + "=" + threadNum + ", " + key6 + "=" + statsInterval);
 	}
 
 	/**
@@ -127,14 +191,16 @@ public class LogfileMonitorManager {
 
 		directoryExistsMap = newDirectoryExistsMap;
 		LogfileMonitorManager.monitorList = monitorList;
+		monitorListChanged = true;
 	}
 
 	private static void refresh() {
-		HashSet<String> newLogfileMonitorCacheKeySet = new HashSet<String>();
+		// <cacheKey, このファイルを監視する監視設定>
+		HashMap<String, List<LogfileMonitor.Subscriber>> newSubscriberMap = new HashMap<String, List<LogfileMonitor.Subscriber>>();
 
 		/*
-		 * logfileMonitorはログファイルごとにオブジェクトが生成される。
-		 * logfileMonitor.monitorInfoListに監視設定が登録される。
+		 * logfileMonitorはログファイル(エンコーディング、改行コード)ごとにオブジェクトが生成される。
+		 * logfileMonitorに監視設定が登録される。
 		 * (logfileMonitorとmonitorInfoは1対多の関係)
 		 */
 		/*
@@ -207,33 +273,34 @@ public class LogfileMonitorManager {
 					continue;
 				}
 				String filePath = file.getAbsolutePath();
-				String cacheKey = monitorId + filePath;
-				LogfileMonitor logfileMonitor = logfileMonitorCache.get(cacheKey);
-				if(logfileMonitor == null){
-					// ファイル監視オブジェクトを生成。
-					logfileMonitor = new LogfileMonitor(filePath, readFromTop, fileEncoding, fileReturnCode, monitorInfo);
-					logfileMonitorCache.put(cacheKey, logfileMonitor);
-				}
-				logfileMonitor.setMonitor(monitorInfo);
-				if (!logfileMonitor.getFileEncoding().equals(fileEncoding)) {
-					logfileMonitor.setFileEncoding(fileEncoding);
-				}
-				if (!logfileMonitor.getFileReturnCode().equals(fileReturnCode)) {
-					logfileMonitor.setFileReturnCode(fileReturnCode);
+				// エンコーディングか改行コードが異なる場合は、行の区切りや変換結果が異なるため別に読み込む
+				String cacheKey = fileEncoding + "///" + fileReturnCode + "///" + filePath;
+				List<LogfileMonitor.Subscriber> subscribers = newSubscriberMap.get(cacheKey);
+				if (subscribers == null) {
+					subscribers = new ArrayList<LogfileMonitor.Subscriber>();
+					newSubscriberMap.put(cacheKey, subscribers);
+					if (!logfileMonitorCache.containsKey(cacheKey)) {
+						// ファイル監視オブジェクトを生成。
+						logfileMonitorCache.put(cacheKey, new LogfileMonitor(filePath, fileEncoding, fileReturnCode));
+					}
 				}
-				
-				newLogfileMonitorCacheKeySet.add(cacheKey);
+				subscribers.add(new LogfileMonitor.Subscriber(monitorInfo, readFromTop));
 			}
 		}
 
+		// 監視設定を反映する(次回の監視から反映される)
+		for (Entry<String, List<LogfileMonitor.Subscriber>> entry : newSubscriberMap.entrySet()) {
+			logfileMonitorCache.get(entry.getKey()).setMonitors(entry.getValue());
+		}
+
 		/*
 		 * 2. もう監視対象じゃないログファイルのlogfileMonitorをクリーンしてから、削除
 		 */
 		Iterator<Entry<String, LogfileMonitor>> it = logfileMonitorCache.entrySet().iterator();
 		while (it.hasNext()) {
 			Entry<String, LogfileMonitor> entry = it.next();
-			if (!newLogfileMonitorCacheKeySet.contains(entry.getKey())) {
-				entry.getValue().clean();
+			if (!newSubscriberMap.containsKey(entry.getKey())) {
+				cleanMonitor(entry.getValue());
 				it.remove();
 			}
 		}
@@ -242,6 +309,15 @@ public class LogfileMonitorManager {
 	}
 
 	public static void start() {
+		if (threadNum > 1) {
+			LogfileWorker[] newWorkers = new LogfileWorker[threadNum];
+			for (int i = 0; i < threadNum; i++) {
+				newWorkers[i] = new LogfileWorker();
+				newWorkers[i].setName("LogFileMonitor-" + i);
+				newWorkers[i].start();
+			}
+			workers = newWorkers;
+		}
 		LogfileThread thread = new LogfileThread();
 		thread.setName("LogFileMonitor");
 		thread.start();
@@ -251,13 +327,24 @@ public class LogfileMonitorManager {
 		@Override
 		public void run() {
 			log.info("run LogfileThread");
+			if (watchEnable) {
+				WatchService watcher = null;
+				try {
+					watcher = FileSystems.getDefault().newWatchService();
+				} catch (Exception e) {
+					// 変更通知を使用できない場合は、一定間隔の監視で動作する
+					log.warn("LogfileThread : watch service is not available. " + e.getClass().getCanonicalName() + ", " +
+							e.getMessage());
+				}
+				if (watcher != null) {
+					new LogfileWatcher(watcher).run();
+					return;
+				}
+			}
 			while (true) {
 				try {
 					refresh();
-					for (String filePath : logfileMonitorCache.keySet()) {
-						LogfileMonitor logfileMonitor = logfileMonitorCache.get(filePath);
-						logfileMonitor.run();
-					}
+					runMonitors(logfileMonitorCache.values());
 				} catch (Exception e) {
 					log.warn("LogfileThread : " + e.getClass().getCanonicalName() + ", " +
 							e.getMessage(), e);
@@ -275,6 +362,404 @@ public class LogfileMonitorManager {
 		}
 	}
 
+	/**
+	 * ログファイル監視を実行する<BR>
+	 *
+	 * ワーカーがある場合は、ファイルごとに決まったワーカーに依頼する(同じファイルは常に同じワーカーで順に読み込む)。
+	 * ワーカーがない場合はこのスレッドで実行し、読み込みの上限に達したファイルは、
+	 * 他のファイルを一巡した後に続きを読み込む。
+	 *
+	 * @param monitors ログファイル監視
+	 */
+	private static void runMonitors(Collection<LogfileMonitor> monitors) {
+		if (workers != null) {
+			for (LogfileMonitor logfileMonitor : monitors) {
+				getWorker(logfileMonitor).submitRun(logfileMonitor);
+			}
+			return;
+		}
+
+		List<LogfileMonitor> list = new ArrayList<LogfileMonitor>(monitors);
+		while (!list.isEmpty()) {
+			List<LogfileMonitor> pendingList = new ArrayList<LogfileMonitor>();
+			for (LogfileMonitor logfileMonitor : list) {
+				logfileMonitor.run();
+				if (logfileMonitor.isReadPending()) {
+					pendingList.add(logfileMonitor);
+				}
+			}
+			list = pendingList;
+		}
+	}
+
+	/**
+	 * 対象外になったログファイル監視をクリーンする(実行中の読み込みの後に行う)
+	 */
+	private static void cleanMonitor(LogfileMonitor logfileMonitor) {
+		if (workers != null) {
+			getWorker(logfileMonitor).submitClean(logfileMonitor);
+		} else {
+			logfileMonitor.clean();
+		}
+	}
+
+	private static LogfileWorker getWorker(LogfileMonitor logfileMonitor) {
+		// 同じファイルを読む監視(監視設定の再作成を含む)は同じワーカーに割り当てる
+		int hash = logfileMonitor.getFilePath().hashCode();
+		return workers[(hash & Integer.MAX_VALUE) % workers.length];
+	}
+
+	/**
+	 * ログファイル監視のワーカー<BR>
+	 *
+	 * 依頼された順に1件ずつ実行する。同じファイルの依頼が実行待ちの場合は重ねて依頼しない。
+	 * 読み込みの上限に達したファイルは、待ち行列の最後に依頼し直す(大量に出力されるファイルが他のファイルを待たせないため)。
+	 */
+	private static class LogfileWorker extends Thread {
+		private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+
+		/** ログファイル監視ごとの実行タスク */
+		private final ConcurrentHashMap<LogfileMonitor, RunTask> taskMap = new ConcurrentHashMap<LogfileMonitor, RunTask>();
+
+		// 統計情報(ワーカーのスレッドのみで更新する)
+		private long statsStart = System.currentTimeMillis();
+		private long runCount = 0;
+		private long runTime = 0; // ナノ秒
+		private long waitTime = 0; // ナノ秒
+		private long maxRunTime = 0; // ナノ秒
+		private String maxRunFile = null;
+
+		private void submitRun(LogfileMonitor logfileMonitor) {
+			RunTask task = taskMap.get(logfileMonitor);
+			if (task == null) {
+				task = new RunTask(logfileMonitor);
+				RunTask old = taskMap.putIfAbsent(logfileMonitor, task);
+				if (old != null) {
+					task = old;
+				}
+			}
+			task.submit();
+		}
+
+		private void submitClean(final LogfileMonitor logfileMonitor) {
+			RunTask task = taskMap.remove(logfileMonitor);
+			if (task != null) {
+				task.cancelled = true;
+			}
+			queue.add(new Runnable() {
+				@Override
+				public void run() {
+					logfileMonitor.clean();
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			log.info("run " + getName());
+			while (true) {
+				try {
+					queue.take().run();
+				} catch (InterruptedException e) {
+					log.info(getName() + " is Interrupted");
+					break;
+				} catch (Exception e) {
+					log.warn(getName() + " : " + e.getClass().getCanonicalName() + ", " +
+							e.getMessage(), e);
+				} catch (Throwable e) {
+					log.error(getName() + " : " + e.getClass().getCanonicalName() + ", " +
+							e.getMessage(), e);
+				}
+				logStats();
+			}
+		}
+
+		private void logStats() {
+			long now = System.currentTimeMillis();
+			if (statsInterval <= 0 || now - statsStart < statsInterval) {
+				return;
+			}
+			if (runCount > 0) {
+				log.info(getName() + " : run=" + runCount
+						+ ", total=" + runTime / 1000000 + "ms"
+						+ ", average=" + runTime / runCount / 1000 + "us"
+						+ ", max=" + maxRunTime / 1000000 + "ms (" + maxRunFile + ")"
+						+ ", wait average=" + waitTime / runCount / 1000 + "us"
+						+ ", queue=" + queue.size()
+						+ ", files=" + taskMap.size()
+						+ ", period=" + (now - statsStart) + "ms");
+			}
+			statsStart = now;
+			runCount = 0;
+			runTime = 0;
+			waitTime = 0;
+			maxRunTime = 0;
+			maxRunFile = null;
+		}
+
+		/**
+		 * ログファイル監視の実行タスク
+		 */
+		private class RunTask implements Runnable {
+			private final LogfileMonitor logfileMonitor;
+			private final AtomicBoolean queued = new AtomicBoolean(false);
+			private volatile boolean cancelled = false;
+			private volatile long queuedTime = 0;
+
+			private RunTask(LogfileMonitor logfileMonitor) {
+				this.logfileMonitor = logfileMonitor;
+			}
+
+			private void submit() {
+				if (queued.compareAndSet(false, true)) {
+					queuedTime = System.nanoTime();
+					queue.add(this);
+				}
+			}
+
+			@Override
+			public void run() {
+				// 実行中に変更された場合は、もう一度依頼を受け付ける
+				long queuedAt = queuedTime;
+				queued.set(false);
+				if (cancelled) {
+					return;
+				}
+				long start = System.nanoTime();
+				try {
+					logfileMonitor.run();
+				} finally {
+					long time = System.nanoTime() - start;
+					runCount++;
+					runTime += time;
+					waitTime += start - queuedAt;
+					if (time > maxRunTime) {
+						maxRunTime = time;
+						maxRunFile = logfileMonitor.getFilePath();
+					}
+				}
+				if (logfileMonitor.isReadPending() && !cancelled) {
+					submit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * ファイルの変更通知(WatchService)によるログファイル監視<BR>
+	 *
+	 * 監視対象のディレクトリを登録し、変更されたファイルのみを読み込む。
+	 * ファイルの作成・削除の通知があった場合のみディレクトリを再走査する。<BR>
+	 *
+	 * 通知の取りこぼし(ネットワークファイルシステムなど)やローテートの判定のため、
+	 * monitor.logfile.filter.watch.interval ごとに全ファイルを確認する。
+	 * 登録できない(存在しないものを含む)ディレクトリがある場合は、monitor.logfile.filter.interval ごとに全ファイルを確認する。
+	 */
+	private static class LogfileWatcher {
+		private final WatchService watcher;
+
+		/** 登録したディレクトリ */
+		private final HashMap<WatchKey, Path> keyDirectoryMap = new HashMap<WatchKey, Path>();
+		private final HashMap<Path, WatchKey> directoryKeyMap = new HashMap<Path, WatchKey>();
+
+		/** 登録できなかった(存在しないものを含む)ディレクトリがある場合はtrue */
+		private boolean registerFailed = false;
+
+		/** 前回全ファイルを確認した時刻 */
+		private long lastScan = 0;
+
+		private LogfileWatcher(WatchService watcher) {
+			this.watcher = watcher;
+		}
+
+		private void run() {
+			log.info("run LogfileThread (watch)");
+			try {
+				while (true) {
+					try {
+						long now = System.currentTimeMillis();
+						long scanInterval = registerFailed ? runInterval : watchInterval;
+						if (now - lastScan >= scanInterval) {
+							scanAll();
+							continue;
+						}
+						if (monitorListChanged) {
+							rescan(null);
+							continue;
+						}
+
+						// 設定変更を監視間隔で反映するため、待ち時間はmonitor.logfile.filter.intervalまでとする
+						long timeout = Math.min(scanInterval - (now - lastScan), runInterval);
+						WatchKey key = watcher.poll(timeout, TimeUnit.MILLISECONDS);
+						if (key == null) {
+							continue;
+						}
+
+						// 溜まっている通知はまとめて処理する
+						HashSet<String> modifiedSet = new HashSet<String>();
+						HashSet<String> createdSet = new HashSet<String>();
+						boolean rescanFlag = false;
+						while (key != null) {
+							rescanFlag |= pollEvents(key, modifiedSet, createdSet);
+							key = watcher.poll();
+						}
+
+						if (rescanFlag) {
+							rescan(createdSet);
+						}
+						runMonitors(modifiedSet);
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						log.warn("LogfileThread : " + e.getClass().getCanonicalName() + ", " +
+								e.getMessage(), e);
+					} catch (Throwable e) {
+						log.error("LogfileThread : " + e.getClass().getCanonicalName() + ", " +
+								e.getMessage(), e);
+					}
+				}
+			} catch (InterruptedException e) {
+				log.info("LogfileThread is Interrupted");
+			} finally {
+				try {
+					watcher.close();
+				} catch (IOException e) {
+					log.warn("LogfileThread : " + e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * 通知の内容を振り分ける
+		 * @return ディレクトリの再走査が必要な場合はtrue
+		 */
+		private boolean pollEvents(WatchKey key, HashSet<String> modifiedSet, HashSet<String> createdSet) {
+			boolean rescanFlag = false;
+			Path directory = keyDirectoryMap.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				WatchEvent.Kind<?> kind = event.kind();
+				if (kind == StandardWatchEventKinds.OVERFLOW || directory == null) {
+					// 通知があふれた場合は全ファイルを確認する
+					log.info("pollEvents() : event overflow. directory=" + directory);
+					lastScan = 0;
+					continue;
+				}
+				String filePath = directory.resolve((Path) event.context()).toFile().getAbsolutePath();
+				if (log.isDebugEnabled()) {
+					log.debug("pollEvents() : " + kind.name() + " " + filePath);
+				}
+				if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+					modifiedSet.add(filePath);
+				} else {
+					// 作成されたファイルは再走査後に読み込む
+					if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+						createdSet.add(filePath);
+					}
+					rescanFlag = true;
+				}
+			}
+			if (!key.reset()) {
+				// ディレクトリが削除された場合
+				log.info("pollEvents() : watch key is invalid. directory=" + directory);
+				keyDirectoryMap.remove(key);
+				if (directory != null) {
+					directoryKeyMap.remove(directory);
+				}
+				rescanFlag = true;
+			}
+			return rescanFlag;
+		}
+
+		/**
+		 * 全ファイルを確認する
+		 */
+		private void scanAll() {
+			lastScan = System.currentTimeMillis();
+			rescan(null);
+			LogfileMonitorManager.runMonitors(logfileMonitorCache.values());
+		}
+
+		/**
+		 * ディレクトリを再走査し、作成されたファイルを読み込む
+		 * @param createdSet 作成されたファイル(ない場合はnull)
+		 */
+		private void rescan(HashSet<String> createdSet) {
+			monitorListChanged = false;
+			refresh();
+			register();
+			if (createdSet != null) {
+				runMonitors(createdSet);
+			}
+		}
+
+		/**
+		 * 指定したファイルのログファイル監視を実行する
+		 */
+		private void runMonitors(HashSet<String> filePathSet) {
+			if (filePathSet.isEmpty()) {
+				return;
+			}
+			ArrayList<LogfileMonitor> list = new ArrayList<LogfileMonitor>();
+			for (LogfileMonitor logfileMonitor : logfileMonitorCache.values()) {
+				if (filePathSet.contains(logfileMonitor.getFilePath())) {
+					list.add(logfileMonitor);
+				}
+			}
+			LogfileMonitorManager.runMonitors(list);
+		}
+
+		/**
+		 * 監視設定のディレクトリを登録し、対象外になったディレクトリの登録を解除する
+		 */
+		private void register() {
+			HashSet<Path> directorySet = new HashSet<Path>();
+			boolean failed = false;
+			for (MonitorInfo monitorInfo : monitorList) {
+				if (monitorInfo.getMonitorFlg() == ValidConstant.TYPE_INVALID) {
+					continue;
+				}
+				File directory = new File(monitorInfo.getLogfileCheckInfo().getDirectory());
+				if (directory.isDirectory()) {
+					directorySet.add(Paths.get(directory.getAbsolutePath()));
+				} else {
+					// まだ存在しないディレクトリは、作成されたことを一定間隔で確認する
+					failed = true;
+				}
+			}
+
+			for (Path directory : directorySet) {
+				if (directoryKeyMap.containsKey(directory)) {
+					continue;
+				}
+				try {
+					WatchKey key = directory.register(watcher,
+							StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+					keyDirectoryMap.put(key, directory);
+					directoryKeyMap.put(directory, key);
+					log.info("register() : directory=" + directory);
+				} catch (Exception e) {
+					log.warn("register() : directory=" + directory + ", " + e.getClass().getCanonicalName() + ", " +
+							e.getMessage());
+					failed = true;
+				}
+			}
+
+			Iterator<Map.Entry<Path, WatchKey>> it = directoryKeyMap.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Path, WatchKey> entry = it.next();
+				if (!directorySet.contains(entry.getKey())) {
+					log.info("register() : cancel directory=" + entry.getKey());
+					entry.getValue().cancel();
+					keyDirectoryMap.remove(entry.getValue());
+					it.remove();
+				}
+			}
+			registerFailed = failed;
+		}
+	}
+
 	/**
 	 * 監視管理のJMSに情報を通知します。<BR>
 	 * 
@@ -17,17 +17,157 @@ package com.clustercontrol.agent.util;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.clustercontrol.calendar.util.CalendarUtil;
 
 /**
  * カレンダのUtilityクラス
  * 
+ * isRun()はカレンダごとに、変換したカレンダと判定結果をキャッシュする。
+ * カレンダの変換は更新日時が変わった場合のみ行い、判定結果は次に稼働/非稼働が切り替わりうる時刻まで使用する。
+ * 切り替わりうる時刻は、有効期間の開始・終了、日付の変わり目、各カレンダ詳細の開始・終了時刻のうち最も近いもので、
+ * calendar.cache.max.msecを上限とする。
  */
 public class CalendarWSUtil {
 
+	private static Log log = LogFactory.getLog(CalendarWSUtil.class);
+
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	/** 判定結果を使用する最大時間(ms)。0の場合はキャッシュしない */
+	private static long maxCacheMsec = 60000;
+
+	/** カレンダIDごとのキャッシュ */
+	private static final ConcurrentHashMap<String, CalendarCache> cacheMap =
+			new ConcurrentHashMap<String, CalendarCache>();
+
+	static {
+		String key = "calendar.cache.max.msec";
+		String str = AgentProperties.getProperty(key, "60000");
+		try {
+			maxCacheMsec = Long.parseLong(str);
+		} catch (NumberFormatException e) {
+			log.warn(key + " : " + e.getMessage());
+		}
+		log.info(key + " uses value \"" + maxCacheMsec + "\". (configuration = \"" + str + "\")");
+	}
+
 	public static boolean isRun(com.clustercontrol.ws.calendar.CalendarInfo info) {
-		return CalendarUtil.isRun(ws2common(info), new Date());
+		if (info == null || info.getId() == null || maxCacheMsec <= 0) {
+			return CalendarUtil.isRun(ws2common(info), new Date());
+		}
+		CalendarCache cache = cacheMap.get(info.getId());
+		if (cache == null || !cache.isSameVersion(info)) {
+			cache = new CalendarCache(info);
+			cacheMap.put(info.getId(), cache);
+		}
+		return cache.isRun(System.currentTimeMillis());
+	}
+
+	/**
+	 * カレンダの変換結果と判定結果
+	 */
+	private static class CalendarCache {
+		private final com.clustercontrol.ws.calendar.CalendarInfo wsInfo;
+		private final Long updateDate;
+		private final com.clustercontrol.calendar.bean.CalendarInfo commonInfo;
+		/** 稼働/非稼働が切り替わりうる時刻(有効期間の開始・終了) */
+		private final Long[] validTimes;
+		/** 稼働/非稼働が切り替わりうる時刻(1日の中での時刻) */
+		private final long[] timesOfDay;
+
+		/** 最後の判定結果 */
+		private volatile CalendarState state = null;
+
+		private CalendarCache(com.clustercontrol.ws.calendar.CalendarInfo wsInfo) {
+			this.wsInfo = wsInfo;
+			this.updateDate = wsInfo.getUpdateDate();
+			this.commonInfo = ws2common(wsInfo);
+			this.validTimes = new Long[] { wsInfo.getValidTimeFrom(), wsInfo.getValidTimeTo() };
+
+			TreeSet<Long> set = new TreeSet<Long>();
+			for (com.clustercontrol.ws.calendar.CalendarDetailInfo detail : wsInfo.getCalendarDetailList()) {
+				if (detail.getTimeFrom() != null) {
+					set.add(floorMod(detail.getTimeFrom(), DAY));
+				}
+				if (detail.getTimeTo() != null) {
+					set.add(floorMod(detail.getTimeTo(), DAY));
+				}
+			}
+			set.add(0L);
+			timesOfDay = new long[set.size()];
+			int i = 0;
+			for (Long time : set) {
+				timesOfDay[i++] = time;
+			}
+		}
+
+		private boolean isSameVersion(com.clustercontrol.ws.calendar.CalendarInfo info) {
+			return wsInfo == info || (updateDate != null && updateDate.equals(info.getUpdateDate()));
+		}
+
+		private boolean isRun(long now) {
+			CalendarState current = state;
+			if (current != null && current.from <= now && now < current.until) {
+				return current.run;
+			}
+			boolean run = CalendarUtil.isRun(commonInfo, new Date(now));
+			state = new CalendarState(run, now, nextChange(now));
+			return run;
+		}
+
+		/**
+		 * 次に稼働/非稼働が切り替わりうる時刻。
+		 * 詳細の時刻がローカル時刻とUTCのどちらを基準にしていても切り替わりを見逃さないよう、両方の日付の変わり目から計算する。
+		 */
+		private long nextChange(long now) {
+			long next = now + maxCacheMsec;
+			for (Long time : validTimes) {
+				if (time != null && time > now && time < next) {
+					next = time;
+				}
+			}
+			int[] offsets = { 0, TimeZone.getDefault().getOffset(now) };
+			for (int offset : offsets) {
+				long dayStart = now - floorMod(now + offset, DAY);
+				for (long time : timesOfDay) {
+					long change = dayStart + time;
+					if (change <= now) {
+						change += DAY;
+					}
+					if (change < next) {
+						next = change;
+					}
+				}
+			}
+			return next;
+		}
+	}
+
+	/**
+	 * 判定結果(判定した時刻fromからuntilの直前まで有効)
+	 */
+	private static class CalendarState {
+		private final boolean run;
+		private final long from;
+		private final long until;
+
+		private CalendarState(boolean run, long from, long until) {
+			this.run = run;
+			this.from = from;
+			this.until = until;
+		}
+	}
+
+	private static long floorMod(long x, long y) {
+		long mod = x % y;
+		return mod < 0 ? mod + y : mod;
 	}
 
 	private static com.clustercontrol.calendar.bean.CalendarInfo ws2common(
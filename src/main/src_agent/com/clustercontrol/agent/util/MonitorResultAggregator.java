@@ -0,0 +1,295 @@
+/*
+
+Copyright (C) 2016 NTT DATA Corporation
+
+This program is free software; you can redistribute it and/or
+Modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation, version 2.
+
+This program is distributed in the hope that it will be
+useful, but WITHOUT ANY WARRANTY; without even the implied
+warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+PURPOSE.  See the GNU General Public License for more details.
+
+ */
+
+package com.clustercontrol.agent.util;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.clustercontrol.agent.log.LogfileResultForwarder;
+import com.clustercontrol.agent.winevent.WinEventResultForwarder;
+import com.clustercontrol.bean.HinemosModuleConstant;
+import com.clustercontrol.ws.agent.MessageInfo;
+import com.clustercontrol.ws.monitor.MonitorInfo;
+import com.clustercontrol.ws.monitor.MonitorStringValueInfo;
+
+/**
+ * 同じ監視結果の繰り返しをまとめてから送信するクラス<BR>
+ *
+ * 同じ監視設定、同じ監視対象ファイル、同じ判定条件で同じメッセージの監視結果は、最初の1件をすぐに送信し、
+ * 集約期間(monitor.aggregation.window、監視設定ごとにmonitor.aggregation.window.[監視項目ID]、ミリ秒)内の2件目以降は送信しない。
+ * 集約期間が終わった時点で、送信しなかった件数と最初・最後の出力日時をメッセージに付けた監視結果を1件送信する。<BR>
+ *
+ * 集約期間が0の監視設定(既定)は、これまで通り1件ずつ送信する。
+ * 削除された監視設定の監視結果は設定の受信時に、それ以外はエージェントの終了時に、集約期間の途中でも送信する。
+ */
+public class MonitorResultAggregator {
+
+	private static Log m_log = LogFactory.getLog(MonitorResultAggregator.class);
+
+	private static final String WINDOW_KEY = "monitor.aggregation.window";
+	private static final String MAX_ENTRIES_KEY = "monitor.aggregation.max.entries";
+
+	/** 集約期間(ms)の既定値 */
+	private static long defaultWindow = 0;
+
+	/** 同時に集約する監視結果の種類の上限(超えた分は集約しない) */
+	private static int maxEntries = 10000;
+
+	/** 監視設定ごとの集約期間(ms) */
+	private static final ConcurrentHashMap<String, Long> windowMap = new ConcurrentHashMap<String, Long>();
+
+	/** 集約中の監視結果(thisの代わりにマップで排他する) */
+	private static final HashMap<String, Entry> entryMap = new HashMap<String, Entry>();
+
+	private static ScheduledExecutorService scheduler = null;
+
+	static {
+		String str = AgentProperties.getProperty(WINDOW_KEY, "0");
+		try {
+			defaultWindow = Long.parseLong(str);
+		} catch (NumberFormatException e) {
+			m_log.warn(WINDOW_KEY + " : " + e.getMessage());
+		}
+		m_log.info(WINDOW_KEY + " uses value \"" + defaultWindow + "\". (configuration = \"" + str + "\")");
+
+		str = AgentProperties.getProperty(MAX_ENTRIES_KEY, "10000");
+		try {
+			maxEntries = Integer.parseInt(str);
+		} catch (NumberFormatException e) {
+			m_log.warn(MAX_ENTRIES_KEY + " : " + e.getMessage());
+		}
+		m_log.info(MAX_ENTRIES_KEY + " uses value \"" + maxEntries + "\". (configuration = \"" + str + "\")");
+	}
+
+	/**
+	 * 集約中の監視結果
+	 */
+	private static class Entry {
+		private final long windowEnd;
+		private final String monitorTypeId;
+		private final String monitorId;
+		private String message;
+		private MessageInfo msgInfo;
+		private MonitorInfo monitorInfo;
+		private MonitorStringValueInfo stringInfo;
+		/** 送信しなかった件数 */
+		private int count = 0;
+		private long first = 0;
+		private long last = 0;
+
+		private Entry(long windowEnd, String monitorTypeId, String monitorId) {
+			this.windowEnd = windowEnd;
+			this.monitorTypeId = monitorTypeId;
+			this.monitorId = monitorId;
+		}
+	}
+
+	/**
+	 * 監視結果を送信する(集約期間内の繰り返しはまとめる)
+	 * @param filename 監視対象のファイル名(ログファイル監視以外はnull)
+	 */
+	public static void add(String message, MessageInfo msgInfo, MonitorInfo monitorInfo, MonitorStringValueInfo stringInfo, String filename) {
+		long window = getWindow(monitorInfo.getMonitorId());
+		if (window <= 0) {
+			forward(message, msgInfo, monitorInfo, stringInfo);
+			return;
+		}
+
+		Entry expired = null;
+		String key = monitorInfo.getMonitorTypeId() + "\u0000" + monitorInfo.getMonitorId() + "\u0000"
+				+ (filename == null ? "" : filename) + "\u0000" + stringInfo.getOrderNo() + "\u0000" + message;
+		long now = System.currentTimeMillis();
+		synchronized (entryMap) {
+			Entry entry = entryMap.get(key);
+			if (entry != null && now < entry.windowEnd) {
+				entry.count++;
+				if (entry.first == 0) {
+					entry.first = msgInfo.getGenerationDate();
+				}
+				entry.last = msgInfo.getGenerationDate();
+				entry.message = message;
+				entry.msgInfo = msgInfo;
+				entry.monitorInfo = monitorInfo;
+				entry.stringInfo = stringInfo;
+				return;
+			}
+			if (entry != null) {
+				// 集約期間が終わっているが、まだ送信していない場合
+				expired = entry;
+				entryMap.remove(key);
+			}
+			if (entryMap.size() < maxEntries) {
+				entryMap.put(key, new Entry(now + window, monitorInfo.getMonitorTypeId(), monitorInfo.getMonitorId()));
+				startScheduler();
+			}
+		}
+		// 送信はロックの外で行う
+		if (expired != null) {
+			flush(expired);
+		}
+		// 最初の1件はすぐに送信する
+		forward(message, msgInfo, monitorInfo, stringInfo);
+	}
+
+	/**
+	 * 集約期間が終わった監視結果を送信する
+	 */
+	private static void flushExpired() {
+		long now = System.currentTimeMillis();
+		List<Entry> flushList = new ArrayList<Entry>();
+		synchronized (entryMap) {
+			Iterator<Entry> it = entryMap.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (now >= entry.windowEnd) {
+					flushList.add(entry);
+					it.remove();
+				}
+			}
+		}
+		flush(flushList);
+	}
+
+	/**
+	 * 集約中のすべての監視結果を送信する(エージェントの終了時)
+	 */
+	public static void flushAll() {
+		List<Entry> flushList;
+		synchronized (entryMap) {
+			flushList = new ArrayList<Entry>(entryMap.values());
+			entryMap.clear();
+		}
+		m_log.info("flushAll() : " + flushList.size() + " entries");
+		flush(flushList);
+	}
+
+	/**
+	 * 削除された監視設定の集約中の監視結果を送信する(設定の受信時)
+	 * @param monitorTypeId 監視種別ID
+	 * @param monitorList 受信した監視設定の一覧
+	 */
+	public static void flushRemoved(String monitorTypeId, List<MonitorInfo> monitorList) {
+		HashSet<String> monitorIds = new HashSet<String>();
+		for (MonitorInfo monitorInfo : monitorList) {
+			monitorIds.add(monitorInfo.getMonitorId());
+		}
+		List<Entry> flushList = new ArrayList<Entry>();
+		synchronized (entryMap) {
+			Iterator<Entry> it = entryMap.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (monitorTypeId.equals(entry.monitorTypeId) && !monitorIds.contains(entry.monitorId)) {
+					flushList.add(entry);
+					it.remove();
+				}
+			}
+		}
+		flush(flushList);
+	}
+
+	private static void flush(List<Entry> flushList) {
+		for (Entry entry : flushList) {
+			flush(entry);
+		}
+	}
+
+	/**
+	 * まとめた監視結果を送信する(送信しなかった監視結果がない場合は何もしない)
+	 */
+	private static void flush(Entry entry) {
+		if (entry.count == 0) {
+			return;
+		}
+		SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
+		String suffix = " (repeated " + entry.count + " times, first=" + format.format(new Date(entry.first))
+				+ ", last=" + format.format(new Date(entry.last)) + ")";
+
+		MessageInfo msgInfo = new MessageInfo();
+		msgInfo.setMessage(entry.msgInfo.getMessage() + suffix);
+		msgInfo.setGenerationDate(entry.first);
+		msgInfo.setHostName(entry.msgInfo.getHostName());
+		m_log.debug("flush() : monitorId=" + entry.monitorInfo.getMonitorId() + ", count=" + entry.count);
+		forward(entry.message + suffix, msgInfo, entry.monitorInfo, entry.stringInfo);
+	}
+
+	private static void forward(String message, MessageInfo msgInfo, MonitorInfo monitorInfo, MonitorStringValueInfo stringInfo) {
+		if (HinemosModuleConstant.MONITOR_LOGFILE.equals(monitorInfo.getMonitorTypeId())) {
+			LogfileResultForwarder.getInstance().add(message, msgInfo, monitorInfo, stringInfo);
+		} else if (HinemosModuleConstant.MONITOR_WINEVENT.equals(monitorInfo.getMonitorTypeId())) {
+			WinEventResultForwarder.getInstance().add(message, msgInfo, monitorInfo, stringInfo);
+		}
+	}
+
+	/**
+	 * 監視設定の集約期間(ms)
+	 */
+	private static long getWindow(String monitorId) {
+		Long window = windowMap.get(monitorId);
+		if (window != null) {
+			return window;
+		}
+		long value = defaultWindow;
+		String key = WINDOW_KEY + "." + monitorId;
+		String str = AgentProperties.getProperty(key);
+		if (str != null) {
+			try {
+				value = Long.parseLong(str);
+			} catch (NumberFormatException e) {
+				m_log.warn(key + " : " + e.getMessage());
+			}
+			m_log.info(key + " uses value \"" + value + "\". (configuration = \"" + str + "\")");
+		}
+		windowMap.put(monitorId, value);
+		return value;
+	}
+
+	private static void startScheduler() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, MonitorResultAggregator.class.getSimpleName());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushExpired();
+				} catch (Throwable t) {
+					m_log.warn("flushExpired() : " + t.getMessage(), t);
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,780 @@
+/*
+
+ Copyright (C) 2016 NTT DATA Corporation
+
+ This program is free software; you can redistribute it and/or
+ Modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation, version 2.
+
+ This program is distributed in the hope that it will be
+ useful, but WITHOUT ANY WARRANTY; without even the implied
+ warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ PURPOSE.  See the GNU General Public License for more details.
+
+ */
+package com.clustercontrol.agent.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.clustercontrol.agent.SendQueue;
+import com.clustercontrol.bean.PriorityConstant;
+import com.clustercontrol.util.Messages;
+import com.clustercontrol.ws.agent.OutputBasicInfo;
+import com.clustercontrol.ws.monitor.MonitorInfo;
+import com.clustercontrol.ws.monitor.MonitorStringValueInfo;
+
+/**
+ * 監視設定の文字列監視ルールをコンパイル済みの状態で保持するクラス<BR>
+ *
+ * ルールセットは監視項目IDと設定のバージョン(更新日時)ごとに1つだけ生成し、
+ * マネージャから新しい監視設定を受信したときのみ再生成する。<BR>
+ *
+ * 各ルールのパターンから必ず含まれるリテラル文字列を抜き出して1つのオートマトンにまとめ、
+ * 1回の走査でマッチし得るルールを絞り込んでから、ルールの順序どおりに正規表現で確認する。<BR>
+ *
+ * monitor.regex.guard.budgetを設定した場合は、1行の判定で正規表現が監視文字列を参照する回数を制限する。
+ * 上限を超えたルールはその行にマッチしないものとして次のルールを判定し、
+ * monitor.regex.guard.quarantine.count回上限を超えたルールは以降判定せず、マネージャに警告を通知する。
+ */
+public class MonitorStringRuleSet {
+
+	// ロガー
+	private static Log m_log = LogFactory.getLog(MonitorStringRuleSet.class);
+
+	/** コンパイル済みルールセットのキャッシュ */
+	//<monitorId, ruleSet>
+	private static ConcurrentHashMap<String, MonitorStringRuleSet> ruleSetCache =
+			new ConcurrentHashMap<String, MonitorStringRuleSet>();
+
+	private static final String GUARD_BUDGET_KEY = "monitor.regex.guard.budget";
+	private static final String GUARD_QUARANTINE_KEY = "monitor.regex.guard.quarantine.count";
+	private static final String MESSAGE_ID_WARNING = "002";
+
+	/** 1行の判定で監視文字列を参照できる回数(0以下の場合は制限しない) */
+	private static long guardBudget = 0;
+
+	/** 判定を停止するまでの上限超過の回数 */
+	private static int guardQuarantineCount = 3;
+
+	/** 判定を停止したことの通知に使用する */
+	private static SendQueue sendQueue = null;
+
+	/**
+	 * 判定を停止したことを通知するスレッド。
+	 * SendQueue.put()はマネージャに送信できるまで戻らないため、判定を行うスレッドからは呼び出さない
+	 */
+	private static final ExecutorService notifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "RegexGuardNotifier");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	static {
+		String str = AgentProperties.getProperty(GUARD_BUDGET_KEY, "0");
+		try {
+			guardBudget = Long.parseLong(str);
+		} catch (NumberFormatException e) {
+			m_log.warn(GUARD_BUDGET_KEY + " : " + e.getMessage());
+		}
+		m_log.info(GUARD_BUDGET_KEY + " uses value \"" + guardBudget + "\". (configuration = \"" + str + "\")");
+
+		str = AgentProperties.getProperty(GUARD_QUARANTINE_KEY, "3");
+		try {
+			guardQuarantineCount = Math.max(1, Integer.parseInt(str));
+		} catch (NumberFormatException e) {
+			m_log.warn(GUARD_QUARANTINE_KEY + " : " + e.getMessage());
+		}
+		m_log.info(GUARD_QUARANTINE_KEY + " uses value \"" + guardQuarantineCount + "\". (configuration = \"" + str + "\")");
+	}
+
+	public static void setSendQueue(SendQueue sendQueue) {
+		MonitorStringRuleSet.sendQueue = sendQueue;
+	}
+
+	/** 生成元の監視設定 */
+	private final MonitorInfo m_monitorInfo;
+
+	/** 監視設定のバージョン(更新日時) */
+	private final Long m_version;
+
+	/** 監視設定の順序どおりに並べたルール */
+	private final Rule[] m_rules;
+
+	/** ルールのリテラルをまとめたオートマトン(リテラルを持つルールが無い場合はnull) */
+	private final StringLiteralAutomaton m_automaton;
+
+	private MonitorStringRuleSet(MonitorInfo monitorInfo) {
+		m_monitorInfo = monitorInfo;
+		m_version = monitorInfo.getUpdateDate();
+
+		List<MonitorStringValueInfo> list = monitorInfo.getStringValueInfo();
+		m_rules = new Rule[list.size()];
+		ArrayList<String> literals = new ArrayList<String>();
+		for (int i = 0; i < m_rules.length; i++) {
+			Rule rule = new Rule(i + 1, list.get(i), monitorInfo.getMonitorTypeId());
+			if (rule.literal != null) {
+				rule.literalIndex = literals.size();
+				literals.add(rule.literal);
+			}
+			m_rules[i] = rule;
+		}
+		m_automaton = literals.isEmpty() ? null : new StringLiteralAutomaton(literals);
+		m_log.debug("MonitorStringRuleSet() : monitorId=" + monitorInfo.getMonitorId()
+				+ ", rules=" + m_rules.length + ", literals=" + literals.size());
+	}
+
+	/**
+	 * マネージャから受信した監視設定でルールセットを作り直す。<BR>
+	 *
+	 * 同じ監視種別で、受信した一覧に含まれない監視設定のルールセットは破棄する。
+	 *
+	 * @param monitorTypeId 監視種別ID
+	 * @param monitorList 受信した監視設定一覧
+	 */
+	public static void refresh(String monitorTypeId, List<MonitorInfo> monitorList) {
+		HashSet<String> monitorIdSet = new HashSet<String>();
+		for (MonitorInfo monitorInfo : monitorList) {
+			monitorIdSet.add(monitorInfo.getMonitorId());
+			MonitorStringRuleSet ruleSet = ruleSetCache.get(monitorInfo.getMonitorId());
+			if (ruleSet == null || !ruleSet.isCompiledFrom(monitorInfo)) {
+				ruleSet = new MonitorStringRuleSet(monitorInfo);
+			}
+			ruleSetCache.put(monitorInfo.getMonitorId(), ruleSet);
+			m_log.debug("refresh() : monitorId=" + monitorInfo.getMonitorId() + ", version=" + ruleSet.m_version
+					+ ", rules=" + ruleSet.m_rules.length);
+		}
+
+		Iterator<Entry<String, MonitorStringRuleSet>> it = ruleSetCache.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<String, MonitorStringRuleSet> entry = it.next();
+			if (monitorTypeId.equals(entry.getValue().m_monitorInfo.getMonitorTypeId())
+					&& !monitorIdSet.contains(entry.getKey())) {
+				m_log.debug("refresh() : remove monitorId=" + entry.getKey());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * 監視設定に対応するルールセットを取得する。<BR>
+	 *
+	 * キャッシュに無い場合(設定受信前に監視が動いた場合など)はここで生成する。
+	 *
+	 * @param monitorInfo 監視設定
+	 * @return ルールセット
+	 */
+	public static MonitorStringRuleSet get(MonitorInfo monitorInfo) {
+		MonitorStringRuleSet ruleSet = ruleSetCache.get(monitorInfo.getMonitorId());
+		if (ruleSet != null && ruleSet.isCompiledFrom(monitorInfo)) {
+			return ruleSet;
+		}
+		m_log.debug("get() : compile monitorId=" + monitorInfo.getMonitorId());
+		ruleSet = new MonitorStringRuleSet(monitorInfo);
+		ruleSetCache.put(monitorInfo.getMonitorId(), ruleSet);
+		return ruleSet;
+	}
+
+	/**
+	 * 指定された監視設定から生成したルールセットと同等かどうか
+	 */
+	private boolean isCompiledFrom(MonitorInfo monitorInfo) {
+		if (m_monitorInfo == monitorInfo) {
+			return true;
+		}
+		List<MonitorStringValueInfo> list = monitorInfo.getStringValueInfo();
+		if (m_rules.length != list.size()) {
+			return false;
+		}
+		if (m_version != null || monitorInfo.getUpdateDate() != null) {
+			// 同じバージョンの監視設定であれば、ルールも同じ
+			return m_version != null && m_version.equals(monitorInfo.getUpdateDate());
+		}
+		// バージョンが無い場合は、ルールを比較する(行ごとに作り直さないため)
+		for (int i = 0; i < m_rules.length; i++) {
+			if (!isSameRule(m_rules[i].stringInfo, list.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 判定条件が同じかどうか(送信する判定条件も置き換えないため、判定に使用しない項目も比較する)
+	 */
+	private static boolean isSameRule(MonitorStringValueInfo a, MonitorStringValueInfo b) {
+		return equals(a.getPattern(), b.getPattern())
+				&& a.isValidFlg() == b.isValidFlg()
+				&& a.isCaseSensitivityFlg() == b.isCaseSensitivityFlg()
+				&& equals(a.getProcessType(), b.getProcessType())
+				&& equals(a.getOrderNo(), b.getOrderNo())
+				&& equals(a.getPriority(), b.getPriority())
+				&& equals(a.getMessage(), b.getMessage())
+				&& equals(a.getDescription(), b.getDescription());
+	}
+
+	private static boolean equals(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * 監視文字列に最初にマッチしたルールの位置を返す。<BR>
+	 *
+	 * 無効なルールは飛ばし、ルールの順序どおりに判定する。
+	 * リテラルが含まれないルールは正規表現での確認を省略する。
+	 *
+	 * @param line 監視文字列
+	 * @return マッチしたルールの位置。マッチしない場合は-1
+	 * @throws PatternSyntaxException 判定対象のルールのパターンが不正な場合
+	 */
+	public int match(String line) {
+		// デバッグ時はルールごとのログを出力するため、すべてのルールを順に判定する
+		if (m_automaton == null || m_log.isDebugEnabled()) {
+			return matchSequential(line);
+		}
+
+		boolean[] found = new boolean[m_automaton.getLiteralCount()];
+		m_automaton.search(line, found);
+		for (int i = 0; i < m_rules.length; i++) {
+			Rule rule = m_rules[i];
+			if (!rule.stringInfo.isValidFlg()) {
+				continue;
+			}
+			// リテラルが含まれなければマッチしない
+			if (rule.literalIndex >= 0 && !found[rule.literalIndex]) {
+				continue;
+			}
+			if (rule.matches(line)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 監視文字列をすべてのルールで順に判定する
+	 */
+	private int matchSequential(String line) {
+		for (int i = 0; i < m_rules.length; i++) {
+			Rule rule = m_rules[i];
+			if(m_log.isDebugEnabled()){
+				m_log.debug("patternMatch() line = " + line
+						+ ", monitorId = " + rule.stringInfo.getMonitorId()
+						+ ", orderNo = " + rule.orderNo
+						+ ", pattern = " + rule.stringInfo.getPattern());
+			}
+			if (!rule.stringInfo.isValidFlg()) {
+				continue;
+			}
+			m_log.trace("patternMatch check " + line);
+
+			if (rule.matches(line)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 指定された位置のルールを返す
+	 */
+	public MonitorStringValueInfo getStringValueInfo(int index) {
+		return m_rules[index].stringInfo;
+	}
+
+	/**
+	 * 有効なルールが必ず含むリテラルの一覧を返す。<BR>
+	 *
+	 * いずれのリテラルも含まない監視文字列は、どのルールにもマッチしない。
+	 *
+	 * @return リテラルの一覧。リテラルを抜き出せない有効なルールがある場合はnull
+	 */
+	public List<String> getRequiredLiterals() {
+		ArrayList<String> literals = new ArrayList<String>();
+		for (Rule rule : m_rules) {
+			if (!rule.stringInfo.isValidFlg()) {
+				continue;
+			}
+			if (rule.literal == null) {
+				return null;
+			}
+			literals.add(rule.literal);
+		}
+		return literals;
+	}
+
+	/**
+	 * コンパイル済みのルール
+	 */
+	private static class Rule {
+		private final int orderNo;
+		private final MonitorStringValueInfo stringInfo;
+		private final String monitorTypeId;
+		private final Pattern pattern;
+		private final RuntimeException error;
+		/** 必ず含まれるリテラル(抜き出せない場合はnull) */
+		private final String literal;
+		/** オートマトン上のリテラル番号(リテラルが無い場合は-1) */
+		private int literalIndex = -1;
+
+		// 参照回数を制限する場合の統計(パターンマッチは複数のスレッドから行う)
+		private final AtomicLong matchCount = new AtomicLong(0);
+		private final AtomicLong matchNanos = new AtomicLong(0);
+		private final AtomicInteger overrunCount = new AtomicInteger(0);
+		private final AtomicBoolean quarantined = new AtomicBoolean(false);
+
+		private Rule(int orderNo, MonitorStringValueInfo stringInfo, String monitorTypeId) {
+			this.orderNo = orderNo;
+			this.stringInfo = stringInfo;
+			this.monitorTypeId = monitorTypeId;
+
+			Pattern pattern = null;
+			RuntimeException error = null;
+			if (stringInfo.isValidFlg()) {
+				try {
+					// 大文字・小文字を区別しない場合
+					if(stringInfo.isCaseSensitivityFlg()){
+						pattern = Pattern.compile(stringInfo.getPattern(), Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+					}
+					// 大文字・小文字を区別する場合
+					else{
+						pattern = Pattern.compile(stringInfo.getPattern(), Pattern.DOTALL);
+					}
+				} catch (RuntimeException e) {
+					m_log.warn("Rule() : invalid pattern. monitorId=" + stringInfo.getMonitorId()
+							+ ", orderNo=" + orderNo + ", " + e.getMessage());
+					error = e;
+				}
+			}
+			this.pattern = pattern;
+			this.error = error;
+			// 不正なパターンは判定時に例外とするため、常に判定対象とする
+			this.literal = pattern == null ? null : extractLiteral(stringInfo.getPattern());
+		}
+
+		private boolean matches(String line) {
+			// 従来どおり、不正なパターンは判定時に例外とする
+			if (error != null) {
+				throw error;
+			}
+			if (guardBudget <= 0) {
+				return pattern.matcher(line).matches();
+			}
+			if (quarantined.get()) {
+				return false;
+			}
+
+			long start = System.nanoTime();
+			try {
+				return pattern.matcher(new BudgetCharSequence(line, guardBudget)).matches();
+			} catch (BudgetExceededException e) {
+				onOverrun(line);
+				return false;
+			} finally {
+				matchNanos.addAndGet(System.nanoTime() - start);
+				matchCount.incrementAndGet();
+			}
+		}
+
+		/**
+		 * 参照回数の上限を超えた場合の処理
+		 */
+		private void onOverrun(String line) {
+			int count = overrunCount.incrementAndGet();
+			m_log.warn("matches() : regex budget exceeded. " + getStatistics()
+					+ ", line length=" + line.length());
+			if (count < guardQuarantineCount || !quarantined.compareAndSet(false, true)) {
+				return;
+			}
+
+			m_log.warn("matches() : rule is quarantined. " + getStatistics());
+			if (sendQueue == null) {
+				return;
+			}
+			OutputBasicInfo output = new OutputBasicInfo();
+			output.setPluginId(monitorTypeId);
+			output.setPriority(PriorityConstant.TYPE_WARNING);
+			output.setApplication(Messages.getString("agent"));
+			output.setMessageId(MESSAGE_ID_WARNING);
+			output.setMessage("Pattern matching of the rule is stopped because it exceeded the regex budget repeatedly.");
+			output.setMessageOrg(getStatistics() + ", pattern=" + stringInfo.getPattern());
+			output.setGenerationDate(new Date().getTime());
+			output.setMonitorId(stringInfo.getMonitorId());
+			output.setFacilityId(""); // マネージャがセットする。
+			output.setScopeText(""); // マネージャがセットする。
+			final SendQueue queue = sendQueue;
+			final OutputBasicInfo message = output;
+			notifier.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						queue.put(message);
+					} catch (Exception e) {
+						m_log.warn("onOverrun() : failed to send notification. " + e.getMessage(), e);
+					}
+				}
+			});
+		}
+
+		private String getStatistics() {
+			return "monitorId=" + stringInfo.getMonitorId()
+					+ ", orderNo=" + orderNo
+					+ ", budget=" + guardBudget
+					+ ", overrun=" + overrunCount.get()
+					+ ", match=" + matchCount.get()
+					+ ", time=" + (matchNanos.get() / 1000000) + "ms";
+		}
+	}
+
+	/**
+	 * 参照回数の上限を超えたことを示す例外
+	 */
+	private static class BudgetExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private BudgetExceededException() {
+			// スタックトレースは使用しないため作成しない
+			super(null, null, false, false);
+		}
+	}
+
+	/**
+	 * 参照回数を数え、上限を超えた場合に例外とする文字列<BR>
+	 *
+	 * 正規表現のバックトラックは文字の参照の繰り返しになるため、参照回数で処理量を制限する。
+	 */
+	private static class BudgetCharSequence implements CharSequence {
+		private final String text;
+		private final int offset;
+		private final int length;
+		private final long[] remain;
+
+		private BudgetCharSequence(String text, long budget) {
+			this(text, 0, text.length(), new long[] { budget });
+		}
+
+		private BudgetCharSequence(String text, int offset, int length, long[] remain) {
+			this.text = text;
+			this.offset = offset;
+			this.length = length;
+			this.remain = remain;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (--remain[0] < 0) {
+				throw new BudgetExceededException();
+			}
+			return text.charAt(offset + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new BudgetCharSequence(text, offset + start, end - start, remain);
+		}
+
+		@Override
+		public String toString() {
+			return text.substring(offset, offset + length);
+		}
+	}
+
+	/**
+	 * 正規表現にマッチする文字列に必ず含まれるリテラルのうち、最長のものを抜き出す。<BR>
+	 *
+	 * 確実に判断できない構文(最上位の選択、埋め込みフラグ、\Qや未知のエスケープなど)を
+	 * 含む場合は抜き出さない。グループと文字クラスはリテラルの区切りとして読み飛ばす。
+	 *
+	 * @param regex 正規表現
+	 * @return リテラル。抜き出せない場合はnull
+	 */
+	static String extractLiteral(String regex) {
+		String longest = null;
+		StringBuilder run = new StringBuilder();
+		int depth = 0;
+		int i = 0;
+		int length = regex.length();
+		while (i < length) {
+			char c = regex.charAt(i);
+			if (Character.isSurrogate(c)) {
+				// 補助文字は量指定子の対象がわかりにくいため扱わない
+				return null;
+			}
+
+			// リテラルとして扱う文字(-1は区切り)
+			int literal = -1;
+			switch (c) {
+			case '\\':
+				if (i + 1 >= length) {
+					return null;
+				}
+				char e = regex.charAt(i + 1);
+				i += 2;
+				if ("tnrfae".indexOf(e) >= 0) {
+					literal = "\t\n\r\f\u0007\u001b".charAt("tnrfae".indexOf(e));
+				} else if ("dDsSwWbBAGZz".indexOf(e) >= 0) {
+					literal = -1;
+				} else if (Character.isLetterOrDigit(e) || Character.isSurrogate(e)) {
+					// \Q、\p、\x、後方参照などは扱わない
+					return null;
+				} else {
+					literal = e;
+				}
+				break;
+			case '[':
+				i = skipCharClass(regex, i);
+				if (i < 0) {
+					return null;
+				}
+				break;
+			case '(':
+				if (i + 1 < length && regex.charAt(i + 1) == '?') {
+					// 埋め込みフラグは大文字・小文字の扱いが変わる可能性があるため扱わない
+					if (i + 2 >= length || ":=!<>".indexOf(regex.charAt(i + 2)) < 0) {
+						return null;
+					}
+				}
+				depth++;
+				i++;
+				break;
+			case ')':
+				depth--;
+				i++;
+				break;
+			case '|':
+				if (depth == 0) {
+					return null;
+				}
+				i++;
+				break;
+			case '?':
+			case '*':
+			case '+':
+				i++;
+				break;
+			case '{':
+				i = regex.indexOf('}', i);
+				if (i < 0) {
+					return null;
+				}
+				i++;
+				break;
+			case '.':
+			case '^':
+			case '$':
+				i++;
+				break;
+			default:
+				literal = c;
+				i++;
+				break;
+			}
+
+			if (literal < 0 || depth > 0) {
+				longest = longer(longest, run);
+				run.setLength(0);
+				continue;
+			}
+
+			// 直後の量指定子を確認する
+			char q = i < length ? regex.charAt(i) : 0;
+			if (q == '?' || q == '*' || q == '{') {
+				// 出現しない可能性がある
+				longest = longer(longest, run);
+				run.setLength(0);
+			} else if (q == '+') {
+				// 繰り返しの後ろには続かない
+				run.append((char) literal);
+				longest = longer(longest, run);
+				run.setLength(0);
+			} else {
+				run.append((char) literal);
+			}
+		}
+		if (depth != 0) {
+			return null;
+		}
+		return longer(longest, run);
+	}
+
+	private static String longer(String longest, StringBuilder run) {
+		if (run.length() > 0 && (longest == null || longest.length() < run.length())) {
+			return run.toString();
+		}
+		return longest;
+	}
+
+	/**
+	 * 文字クラスを読み飛ばす
+	 * @return 文字クラスの次の位置。解釈できない場合は-1
+	 */
+	private static int skipCharClass(String regex, int start) {
+		int i = start + 1;
+		if (i < regex.length() && regex.charAt(i) == '^') {
+			i++;
+		}
+		if (i < regex.length() && regex.charAt(i) == ']') {
+			return -1;
+		}
+		int depth = 1;
+		while (i < regex.length()) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+					return -1;
+				}
+				i += 2;
+				continue;
+			}
+			if (c == '[') {
+				depth++;
+			} else if (c == ']') {
+				depth--;
+				if (depth == 0) {
+					return i + 1;
+				}
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	// ここから下は単体試験(従来のルールごとの判定との性能比較)
+	public static void main(String args[]) {
+		int ruleCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int lineCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+		MonitorInfo monitorInfo = new MonitorInfo();
+		monitorInfo.setMonitorId("BENCH");
+		monitorInfo.setUpdateDate(System.currentTimeMillis());
+		for (int i = 0; i < ruleCount; i++) {
+			MonitorStringValueInfo stringInfo = new MonitorStringValueInfo();
+			stringInfo.setMonitorId("BENCH");
+			stringInfo.setOrderNo(i + 1);
+			stringInfo.setValidFlg(true);
+			stringInfo.setCaseSensitivityFlg(i % 2 == 0);
+			switch (i % 4) {
+			case 0:
+				stringInfo.setPattern(".*ERR" + i + "[0-9]+ .*");
+				break;
+			case 1:
+				stringInfo.setPattern(".*app" + i + "\\.service: (failed|stopped).*");
+				break;
+			case 2:
+				stringInfo.setPattern("^kernel: dev" + i + " .*timeout.*");
+				break;
+			default:
+				stringInfo.setPattern(".*\\[WARN\\] user=u" + i + " .*");
+				break;
+			}
+			monitorInfo.getStringValueInfo().add(stringInfo);
+		}
+		// 最後のルールはすべての行にマッチする
+		MonitorStringValueInfo last = new MonitorStringValueInfo();
+		last.setMonitorId("BENCH");
+		last.setOrderNo(ruleCount + 1);
+		last.setValidFlg(true);
+		last.setPattern(".*");
+		monitorInfo.getStringValueInfo().add(last);
+
+		String[] lines = new String[lineCount];
+		java.util.Random random = new java.util.Random(0);
+		for (int i = 0; i < lineCount; i++) {
+			int n = random.nextInt(ruleCount * 20);
+			switch (random.nextInt(5)) {
+			case 0:
+				lines[i] = "Oct 18 10:00:00 host ERR" + n + "12 something happened";
+				break;
+			case 1:
+				lines[i] = "Oct 18 10:00:00 host APP" + n + ".service: Failed with result 'exit-code'";
+				break;
+			case 2:
+				lines[i] = "kernel: dev" + n + " i/o timeout on sector " + n;
+				break;
+			case 3:
+				lines[i] = "Oct 18 10:00:00 host [WARN] user=u" + n + " login";
+				break;
+			default:
+				lines[i] = "Oct 18 10:00:00 host systemd[1]: Started Session " + n + " of user root.";
+				break;
+			}
+		}
+
+		MonitorStringRuleSet ruleSet = new MonitorStringRuleSet(monitorInfo);
+		int[] expected = new int[lineCount];
+		int[] actual = new int[lineCount];
+
+		for (int loop = 0; loop < 3; loop++) {
+			// 従来の判定(行ごとにコンパイル)
+			long start = System.nanoTime();
+			for (int i = 0; i < lineCount; i++) {
+				expected[i] = -1;
+				int order_no = 0;
+				for (MonitorStringValueInfo stringInfo : monitorInfo.getStringValueInfo()) {
+					int flags = stringInfo.isCaseSensitivityFlg() ? Pattern.DOTALL | Pattern.CASE_INSENSITIVE : Pattern.DOTALL;
+					if (Pattern.compile(stringInfo.getPattern(), flags).matcher(lines[i]).matches()) {
+						expected[i] = order_no;
+						break;
+					}
+					order_no++;
+				}
+			}
+			long legacy = System.nanoTime() - start;
+
+			// コンパイル済みのルールを順に判定
+			start = System.nanoTime();
+			for (int i = 0; i < lineCount; i++) {
+				actual[i] = ruleSet.matchSequential(lines[i]);
+			}
+			long sequential = System.nanoTime() - start;
+			check(expected, actual, "sequential");
+
+			// オートマトンで絞り込んで判定
+			start = System.nanoTime();
+			for (int i = 0; i < lineCount; i++) {
+				actual[i] = ruleSet.match(lines[i]);
+			}
+			long combined = System.nanoTime() - start;
+			check(expected, actual, "combined");
+
+			System.out.println("rules=" + (ruleCount + 1) + ", lines=" + lineCount
+					+ ", legacy=" + legacy / 1000000 + "ms"
+					+ ", sequential=" + sequential / 1000000 + "ms"
+					+ ", combined=" + combined / 1000000 + "ms");
+		}
+	}
+
+	private static void check(int[] expected, int[] actual, String name) {
+		for (int i = 0; i < expected.length; i++) {
+			if (expected[i] != actual[i]) {
+				System.out.println("NG!! " + name + " line=" + i + ", expected=" + expected[i] + ", actual=" + actual[i]);
+				return;
+			}
+		}
+		System.out.println("OK!! " + name);
+	}
+}
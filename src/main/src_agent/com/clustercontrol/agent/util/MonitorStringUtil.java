@@ -14,20 +14,22 @@
  */
 package com.clustercontrol.agent.util;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.Date;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.clustercontrol.agent.Agent;
-import com.clustercontrol.agent.log.LogfileResultForwarder;
-import com.clustercontrol.agent.winevent.WinEventResultForwarder;
-import com.clustercontrol.bean.HinemosModuleConstant;
 import com.clustercontrol.bean.ProcessConstant;
 import com.clustercontrol.bean.ValidConstant;
 import com.clustercontrol.ws.agent.MessageInfo;
+import com.clustercontrol.ws.monitor.LogfileCheckInfo;
 import com.clustercontrol.ws.monitor.MonitorInfo;
 import com.clustercontrol.ws.monitor.MonitorStringValueInfo;
 
@@ -40,6 +42,19 @@ public class MonitorStringUtil {
 	public static final int _messageLimitLength;
 	public static final int _messageLimitLengthDefault = 1024;
 
+	/** パターンマッチの並列数(1以下の場合は並列にしない) */
+	public static final int _matchParallelism;
+	/** 並列でパターンマッチする単位(行数)。1単位以下の行は呼び出し元のスレッドで処理する */
+	public static final int _matchBlockSize;
+
+	private static ForkJoinPool _matchPool = null;
+
+	/** ファイルごとの監視設定のコピーの上限(超えた場合は作り直す) */
+	private static final int FILE_MONITOR_INFO_MAX = 1000;
+
+	/** ファイルごとの監視設定のコピー(監視項目ID+ファイル名 → {元の監視設定, コピー}) */
+	private static final ConcurrentHashMap<String, MonitorInfo[]> fileMonitorInfoMap = new ConcurrentHashMap<String, MonitorInfo[]>();
+
 	static{
 		// 1行のメッセージ上限を定める
 		String messageLimitLengthStr = AgentProperties.getProperty("monitor.message.length");
@@ -50,6 +65,45 @@ public class MonitorStringUtil {
 			m_log.info("monitor.message.length uses " + _messageLimitLengthDefault + ". (" + messageLimitLengthStr + " is not collect)");
 		}
 		_messageLimitLength = messageLimitLength;
+
+		// 複数行をまとめてパターンマッチする場合の並列数
+		String parallelismStr = AgentProperties.getProperty("monitor.logfile.match.parallelism", "1");
+		int parallelism = 1;
+		try {
+			parallelism = Integer.parseInt(parallelismStr);
+		} catch (NumberFormatException e) {
+			m_log.info("monitor.logfile.match.parallelism uses 1. (" + parallelismStr + " is not collect)");
+		}
+		if (parallelism == 0) {
+			parallelism = Runtime.getRuntime().availableProcessors();
+		}
+		_matchParallelism = parallelism;
+		m_log.info("monitor.logfile.match.parallelism = " + _matchParallelism);
+
+		// 並列でパターンマッチする単位(行数)
+		String blockSizeStr = AgentProperties.getProperty("monitor.logfile.match.block.size", "256");
+		int blockSize = 256;
+		try {
+			blockSize = Math.max(1, Integer.parseInt(blockSizeStr));
+		} catch (NumberFormatException e) {
+			m_log.info("monitor.logfile.match.block.size uses 256. (" + blockSizeStr + " is not collect)");
+		}
+		_matchBlockSize = blockSize;
+		m_log.info("monitor.logfile.match.block.size = " + _matchBlockSize);
+	}
+
+	private static synchronized ForkJoinPool getMatchPool() {
+		if (_matchPool == null) {
+			_matchPool = new ForkJoinPool(_matchParallelism);
+		}
+		return _matchPool;
+	}
+
+	/**
+	 * 複数行をまとめてパターンマッチするかどうか
+	 */
+	public static boolean isParallelMatch() {
+		return _matchParallelism > 1;
 	}
 
 	/**
@@ -85,78 +139,223 @@ public class MonitorStringUtil {
 	 * @param monitorInfo 監視設定
 	 */
 	public static void patternMatch(String line, MonitorInfo monitorInfo, Date generationDate, String filename) {
-		if (monitorInfo.getCalendar() != null &&
-				! CalendarWSUtil.isRun(monitorInfo.getCalendar())) {
-			m_log.debug("patternMatch is skipped because of calendar");
+		if (!isActive(monitorInfo)) {
 			return;
 		}
 
-		if (monitorInfo.getMonitorFlg() == ValidConstant.TYPE_INVALID) {
-			m_log.debug("patternMatch is skipped because of monitor flg");
+		MonitorStringRuleSet ruleSet = MonitorStringRuleSet.get(monitorInfo);
+		int index = ruleSet.match(line);
+		if (index < 0) {
 			return;
 		}
+		send(line, monitorInfo, ruleSet.getStringValueInfo(index), generationDate, filename);
+	}
 
-		int order_no = 0;
-		for(MonitorStringValueInfo stringInfo : monitorInfo.getStringValueInfo()) {
-			++order_no;
-			if(m_log.isDebugEnabled()){
-				m_log.debug("patternMatch() line = " + line
-						+ ", monitorId = " + stringInfo.getMonitorId()
-						+ ", orderNo = " + order_no
-						+ ", pattern = " + stringInfo.getPattern());
-			}
-			if (!stringInfo.isValidFlg()) {
-				continue;
-			}
-			String patternText = stringInfo.getPattern();
-			String message = line;
-			m_log.trace("patternMatch check " + message);
-
-			Pattern pattern = null;
-			// 大文字・小文字を区別しない場合
-			if(stringInfo.isCaseSensitivityFlg()){
-				pattern = Pattern.compile(patternText, Pattern.DOTALL | Pattern.CASE_INSENSITIVE);
+	/**
+	 * 複数行をまとめてパターンマッチし、マネージャに送信する。<BR>
+	 * 
+	 * 行数が並列でパターンマッチする単位を超える場合は、単位ごとに分割してForkJoinPoolでパターンマッチする。
+	 * 送信は1行ずつの場合と同じ順番(行の順、同じ行では監視設定の順)で、呼び出し元のスレッドで行う。
+	 * 
+	 * @param lines 監視文字列(整形済み)
+	 * @param monitorInfoList 監視設定
+	 * @param fromIndex 監視設定ごとに、パターンマッチを開始する行の位置
+	 * @param filename ファイル名
+	 */
+	public static void patternMatch(List<String> lines, List<MonitorInfo> monitorInfoList, int[] fromIndex, String filename) {
+		int size = lines.size();
+		int monitors = monitorInfoList.size();
+		MonitorStringRuleSet[] ruleSets = new MonitorStringRuleSet[monitors];
+		int[][] results = new int[monitors][];
+		RuntimeException[][] errors = new RuntimeException[monitors][];
+		boolean active = false;
+		for (int m = 0; m < monitors; m++) {
+			// カレンダと監視の有効/無効はまとめた行ごとに1回判定する
+			if (fromIndex[m] < size && isActive(monitorInfoList.get(m))) {
+				ruleSets[m] = MonitorStringRuleSet.get(monitorInfoList.get(m));
+				results[m] = new int[size];
+				errors[m] = new RuntimeException[size];
+				active = true;
 			}
-			// 大文字・小文字を区別する場合
-			else{
-				pattern = Pattern.compile(patternText, Pattern.DOTALL);
+		}
+		if (!active) {
+			return;
+		}
+
+		MatchTask task = new MatchTask(lines, ruleSets, fromIndex, results, errors, 0, size);
+		if (size > _matchBlockSize && isParallelMatch()) {
+			getMatchPool().invoke(task);
+		} else {
+			task.matchRange();
+		}
+
+		for (int i = 0; i < size; i++) {
+			for (int m = 0; m < monitors; m++) {
+				if (ruleSets[m] == null || i < fromIndex[m]) {
+					continue;
+				}
+				// 1行ずつの場合と同様に、不正なパターンの例外はその行の送信の時点でthrowする
+				if (errors[m][i] != null) {
+					throw errors[m][i];
+				}
+				int index = results[m][i];
+				if (index >= 0) {
+					send(lines.get(i), monitorInfoList.get(m), ruleSets[m].getStringValueInfo(index), null, filename);
+				}
 			}
-			Matcher matcher = pattern.matcher(line);
+		}
+	}
 
-			if (matcher.matches()) {
-				m_log.debug("patternMatch match " + message);
+	/**
+	 * 指定された範囲の行をパターンマッチする(結果は行の位置に格納する)
+	 */
+	private static class MatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
-				// 「処理する」
-				if (stringInfo.getProcessType() == ProcessConstant.TYPE_YES) {
-					MessageInfo logmsg = new MessageInfo();
-					logmsg.setMessage(line);
+		private final List<String> lines;
+		private final MonitorStringRuleSet[] ruleSets;
+		private final int[] fromIndex;
+		private final int[][] results;
+		private final RuntimeException[][] errors;
+		private final int from;
+		private final int to;
 
-					if(generationDate != null){
-						m_log.debug("patternMatch set generation date : " + generationDate);
-						logmsg.setGenerationDate(generationDate.getTime());
-					}else{
-						logmsg.setGenerationDate(new Date().getTime());
-					}
-					logmsg.setHostName(Agent.getAgentInfo().getHostname());
-					
-					if (filename != null) {
-						monitorInfo.getLogfileCheckInfo().setLogfile(filename);
+		private MatchTask(List<String> lines, MonitorStringRuleSet[] ruleSets, int[] fromIndex,
+				int[][] results, RuntimeException[][] errors, int from, int to) {
+			this.lines = lines;
+			this.ruleSets = ruleSets;
+			this.fromIndex = fromIndex;
+			this.results = results;
+			this.errors = errors;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= _matchBlockSize) {
+				matchRange();
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new MatchTask(lines, ruleSets, fromIndex, results, errors, from, middle),
+					new MatchTask(lines, ruleSets, fromIndex, results, errors, middle, to));
+		}
+
+		private void matchRange() {
+			for (int i = from; i < to; i++) {
+				String line = lines.get(i);
+				for (int m = 0; m < ruleSets.length; m++) {
+					if (ruleSets[m] == null || i < fromIndex[m]) {
+						continue;
 					}
-					
-					if (HinemosModuleConstant.MONITOR_LOGFILE.equals(monitorInfo.getMonitorTypeId())) {
-						LogfileResultForwarder.getInstance().add(message, logmsg, monitorInfo, stringInfo);
-					} else if (HinemosModuleConstant.MONITOR_WINEVENT.equals(monitorInfo.getMonitorTypeId())) {
-						WinEventResultForwarder.getInstance().add(message, logmsg, monitorInfo, stringInfo);
+					try {
+						results[m][i] = ruleSets[m].match(line);
+					} catch (RuntimeException e) {
+						results[m][i] = -1;
+						errors[m][i] = e;
 					}
-					
-					m_log.debug("patternMatch send message : " + message);
-					m_log.debug("patternMatch send logmsg message : " + logmsg.getMessage());
-					m_log.debug("patternMatch send logmsg generation date : " + new Date(logmsg.getGenerationDate()));
-					m_log.debug("patternMatch send logmsg hostname : " + logmsg.getHostName());
 				}
-				break;
 			}
 		}
 	}
 
+	/**
+	 * カレンダと監視の有効/無効から、パターンマッチするかどうかを判定する
+	 */
+	private static boolean isActive(MonitorInfo monitorInfo) {
+		if (monitorInfo.getCalendar() != null &&
+				! CalendarWSUtil.isRun(monitorInfo.getCalendar())) {
+			m_log.debug("patternMatch is skipped because of calendar");
+			return false;
+		}
+
+		if (monitorInfo.getMonitorFlg() == ValidConstant.TYPE_INVALID) {
+			m_log.debug("patternMatch is skipped because of monitor flg");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * マッチした監視文字列をマネージャに送信する
+	 */
+	private static void send(String line, MonitorInfo monitorInfo, MonitorStringValueInfo stringInfo, Date generationDate, String filename) {
+		String message = line;
+		m_log.debug("patternMatch match " + message);
+
+		// 「処理する」
+		if (stringInfo.getProcessType() == ProcessConstant.TYPE_YES) {
+			MessageInfo logmsg = new MessageInfo();
+			logmsg.setMessage(line);
+
+			if(generationDate != null){
+				m_log.debug("patternMatch set generation date : " + generationDate);
+				logmsg.setGenerationDate(generationDate.getTime());
+			}else{
+				logmsg.setGenerationDate(new Date().getTime());
+			}
+			logmsg.setHostName(Agent.getAgentInfo().getHostname());
+			
+			if (filename != null) {
+				// 監視設定は複数のファイル・スレッドで共有しているため、変更せずにファイルごとのコピーを送信する
+				monitorInfo = getMonitorInfo(monitorInfo, filename);
+			}
+			
+			// 同じ監視結果の繰り返しはまとめてから送信する
+			MonitorResultAggregator.add(message, logmsg, monitorInfo, stringInfo, filename);
+			
+			m_log.debug("patternMatch send message : " + message);
+			m_log.debug("patternMatch send logmsg message : " + logmsg.getMessage());
+			m_log.debug("patternMatch send logmsg generation date : " + new Date(logmsg.getGenerationDate()));
+			m_log.debug("patternMatch send logmsg hostname : " + logmsg.getHostName());
+		}
+	}
+
+	/**
+	 * 監視対象のファイル名を設定した監視設定のコピーを返す。
+	 * 監視設定・ファイルごとに1回だけ作成し、同じファイルの行で共有する(元の監視設定は変更しない)。
+	 */
+	private static MonitorInfo getMonitorInfo(MonitorInfo monitorInfo, String filename) {
+		LogfileCheckInfo checkInfo = monitorInfo.getLogfileCheckInfo();
+		if (checkInfo == null) {
+			return monitorInfo;
+		}
+		String key = monitorInfo.getMonitorId() + "\u0000" + filename;
+		MonitorInfo[] cached = fileMonitorInfoMap.get(key);
+		if (cached != null && cached[0] == monitorInfo) {
+			return cached[1];
+		}
+
+		MonitorInfo copy = new MonitorInfo();
+		LogfileCheckInfo checkInfoCopy = new LogfileCheckInfo();
+		try {
+			copyFields(MonitorInfo.class, monitorInfo, copy);
+			copyFields(LogfileCheckInfo.class, checkInfo, checkInfoCopy);
+		} catch (Exception e) {
+			m_log.warn("getMonitorInfo() : " + e.getMessage() + ", monitorId=" + monitorInfo.getMonitorId());
+			return monitorInfo;
+		}
+		checkInfoCopy.setLogfile(filename);
+		copy.setLogfileCheckInfo(checkInfoCopy);
+
+		if (fileMonitorInfoMap.size() >= FILE_MONITOR_INFO_MAX) {
+			// ローテートでファイル名が変わり続ける場合など
+			fileMonitorInfoMap.clear();
+		}
+		fileMonitorInfoMap.put(key, new MonitorInfo[] { monitorInfo, copy });
+		return copy;
+	}
+
+	private static void copyFields(Class<?> type, Object src, Object dst) throws IllegalAccessException {
+		for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for (Field field : clazz.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())) {
+					continue;
+				}
+				field.setAccessible(true);
+				field.set(dst, field.get(src));
+			}
+		}
+	}
 }
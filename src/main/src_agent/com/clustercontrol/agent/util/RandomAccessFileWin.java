@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -102,6 +103,15 @@ public class RandomAccessFileWin {
 				OVERLAPPED lpOverlapped
 				);
 
+		// lpBufferにはバッファの現在位置が渡される
+		boolean ReadFile(
+				HANDLE hFile,
+				ByteBuffer lpBuffer,
+				int nNumberOfBytesToRead,
+				byte[] lpNumberOfBytesRead,
+				OVERLAPPED lpOverlapped
+				);
+
 		/*
 		DWORD GetFileSize(
 				  HANDLE hFile,           // ファイルのハンドル
@@ -253,6 +263,28 @@ public class RandomAccessFileWin {
 		return readbyte;
 	}
 
+	public int read(ByteBuffer b) throws IOException {
+		int nNumberOfBytesToRead = b.remaining();
+		byte[] lpNumberOfBytesRead = new byte[4]; // 読み込んだ文字数
+		kernel32.INSTANCE.SetLastError(0);
+		kernel32.INSTANCE.ReadFile(
+				hFile, b, nNumberOfBytesToRead, lpNumberOfBytesRead, null);
+		int error = kernel32.INSTANCE.GetLastError();
+		if (error != 0) {
+			throw new IOException ("read error=" + Win32Error.getMessage(error));
+		}
+
+		int readbyte = dword2int(lpNumberOfBytesRead);
+		if (readbyte == 0) {
+			// read(byte[])と同様にEOFとする
+			return -1;
+		}
+		m_log.trace("read nPos=" + nPos + ", readbyte=" + readbyte);
+		b.position(b.position() + readbyte);
+		nPos += readbyte;
+		return readbyte;
+	}
+
 	public void close() throws IOException {
 		kernel32.INSTANCE.SetLastError(0);
 		kernel32.INSTANCE.CloseHandle(hFile);
@@ -5,6 +5,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -83,6 +86,42 @@ public class RandomAccessFileWrapper {
 		}
 	}
 
+	/**
+	 * バッファの現在位置から残りの長さまで読み込み、読み込んだ分だけ位置を進める
+	 * @param buf バッファ(Windowsの場合は配列を持つバッファ)
+	 * @return 読み込んだバイト数。ファイルの終わりの場合は-1
+	 */
+	public int read(ByteBuffer buf) throws IOException {
+		if (flag) {
+			return winFile.read(buf);
+		} else {
+			return linuxFile.getChannel().read(buf);
+		}
+	}
+
+	/**
+	 * ファイルをメモリにマッピングできるかどうか<BR>
+	 *
+	 * Windowsではマッピング中のファイルを削除・リネームできないため、対象外とする。
+	 */
+	public boolean isMappable() {
+		String osName = System.getProperty("os.name");
+		return !flag && osName != null && !osName.startsWith("Windows");
+	}
+
+	/**
+	 * ファイルの指定範囲を読み込み専用でメモリにマッピングする
+	 * @param position 開始位置
+	 * @param size サイズ
+	 * @return マッピングしたバッファ
+	 */
+	public MappedByteBuffer map(long position, long size) throws IOException {
+		if (!isMappable()) {
+			throw new IOException("map is not supported");
+		}
+		return linuxFile.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
 	public void close() throws IOException {
 		if (flag) {
 			winFile.close();
@@ -0,0 +1,536 @@
+/*
+
+Copyright (C) 2016 NTT DATA Corporation
+
+This program is free software; you can redistribute it and/or
+Modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation, version 2.
+
+This program is distributed in the hope that it will be
+useful, but WITHOUT ANY WARRANTY; without even the implied
+warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+PURPOSE.  See the GNU General Public License for more details.
+
+ */
+
+package com.clustercontrol.agent.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.clustercontrol.agent.Agent;
+
+/**
+ * 監視結果をまとめてマネージャへ送信するクラスの共通部分.<BR>
+ *
+ * add()はロックを取得せずにキューへ追加する。
+ * 送信は送信先ごとに1スレッドのみが行い、キューから取り出した分をロックを持たずに送信する。
+ * 送信に失敗した分は再送用のリストに戻し、次回の送信時に先頭から送信する。
+ * 定期的な送信のスケジューラは全ての送信先で共有する。<BR>
+ *
+ * 1回に送信する件数は、送信に成功するたびに一定数増やし、
+ * 送信に失敗した場合や応答時間が目標を超えた場合に半分にする(AIMD)。
+ * また、1回に送信するサイズ(推定)の上限を設ける。
+ * 送信に失敗した場合は、送信間隔を指数的に延ばしたうえでランダムに揺らして再送する。<BR>
+ *
+ * spill.quotaを設定した場合は、キューに入りきらない監視結果をファイルに退避し(ResultSpill)、
+ * キューに空きができた時に記録順にキューへ戻す。
+ * 退避中に追加された監視結果も退避して、送信順を保つ。
+ *
+ * @param <T> 送信する監視結果
+ */
+public abstract class ResultForwarder<T> {
+
+	private static Log log = LogFactory.getLog(ResultForwarder.class);
+
+	/** 送信先の種類数(ログファイル、カスタム、Windowsイベント) */
+	private static final int SCHEDULER_THREADS = 3;
+
+	private static final ScheduledExecutorService _scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS,
+			new ThreadFactory() {
+				private final AtomicInteger _count = new AtomicInteger(0);
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, ResultForwarder.class.getSimpleName() + _count.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** ログ出力用の監視の名前(logfile, custom, winevent) */
+	private final String _name;
+
+	/** 監視結果のクラス(退避時の変換に使用する) */
+	private final Class<T> _resultClass;
+
+	public final int _queueMaxSize;
+
+	public final int _transportMaxTries;
+	public final int _transportMaxSize;
+	public final int _transportIntervalSize;
+	public final long _transportIntervalMSec;
+
+	public final long _transportMaxBytes;
+	public final long _transportIntervalBytes;
+	public final int _transportIncrease;
+	public final long _transportRttTargetMSec;
+	public final long _transportBackoffMaxMSec;
+
+	private final AtomicInteger transportTries = new AtomicInteger(0);
+
+	/** 1回に送信する件数(AIMDで増減する) */
+	private volatile int batchSize;
+
+	/** 応答時間の移動平均(ミリ秒) */
+	private volatile long rtt = 0;
+
+	/** 送信に失敗した後、次に送信する時刻(送信中のスレッドのみが操作する) */
+	private long nextTransportTime = 0;
+
+	private final Random random = new Random();
+
+	/** 送信待ちの監視結果 */
+	private final ConcurrentLinkedQueue<T> forwardQueue = new ConcurrentLinkedQueue<T>();
+
+	/** 送信待ちの監視結果の数(再送待ちを含む) */
+	private final AtomicInteger forwardSize = new AtomicInteger(0);
+
+	/** 送信待ちの監視結果のサイズ(推定、再送待ちを含む) */
+	private final AtomicLong forwardBytes = new AtomicLong(0);
+
+	/** 送信に失敗した監視結果(送信中のスレッドのみが操作する) */
+	private final LinkedList<T> retryList = new LinkedList<T>();
+
+	/** 送信中かどうか */
+	private final AtomicBoolean forwarding = new AtomicBoolean(false);
+
+	/** キューに入りきらない監視結果の退避先(無効の場合はnull) */
+	private final ResultSpill spill;
+
+	/** 退避中の監視結果の数(キューに戻した後に減らす) */
+	private final AtomicInteger spillCount = new AtomicInteger(0);
+
+	/** 退避とキューへの戻しを排他するロック */
+	private final Object spillLock = new Object();
+
+	private JAXBContext context = null;
+
+	private final Runnable _task = new Runnable() {
+		@Override
+		public void run() {
+			forward();
+		}
+	};
+
+	/**
+	 * コンストラクタ
+	 * @param name 監視の名前(プロパティ名の"monitor.<name>.forwarding"に使用する)
+	 * @param resultClass 監視結果のクラス
+	 */
+	protected ResultForwarder(String name, Class<T> resultClass) {
+		_name = name;
+		_resultClass = resultClass;
+		String prefix = "monitor." + name + ".forwarding.";
+
+		_queueMaxSize = getIntProperty(prefix + "queue.maxsize", 5000);
+		_transportMaxSize = getIntProperty(prefix + "transport.maxsize", 100);
+		_transportMaxTries = getIntProperty(prefix + "transport.maxtries", 900);
+		_transportIntervalSize = getIntProperty(prefix + "transport.interval.size", 15);
+
+		{
+			String key = prefix + "transport.interval.msec";
+			long valueDefault = 1000L;
+			String str = AgentProperties.getProperty(key);
+			long value = valueDefault;
+			try {
+				value = Long.parseLong(str);
+				if (value != -1 && value < 1) {
+					throw new NumberFormatException();
+				}
+			} catch (NumberFormatException e) {
+				value = valueDefault;
+			} finally {
+				log.info(key + " uses value \"" + value + "\". (configuration = \"" + str + "\")");
+			}
+			_transportIntervalMSec = value;
+		}
+
+		_transportMaxBytes = getLongProperty(prefix + "transport.maxbytes", 1048576L);
+		_transportIntervalBytes = getLongProperty(prefix + "transport.interval.bytes", 262144L);
+		_transportIncrease = getIntProperty(prefix + "transport.increase", 10);
+		_transportRttTargetMSec = getLongProperty(prefix + "transport.rtt.target.msec", 10000L);
+		_transportBackoffMaxMSec = getLongProperty(prefix + "transport.backoff.max.msec", 60000L);
+
+		batchSize = _transportMaxSize != -1 ? _transportMaxSize : 100;
+
+		// 退避ファイルの合計サイズの上限(0の場合は退避しない)
+		long spillQuota = 0;
+		{
+			String key = prefix + "spill.quota";
+			String str = AgentProperties.getProperty(key, "0");
+			try {
+				spillQuota = Long.parseLong(str);
+			} catch (NumberFormatException e) {
+				spillQuota = 0;
+			} finally {
+				log.info(key + " uses value \"" + spillQuota + "\". (configuration = \"" + str + "\")");
+			}
+		}
+		if (spillQuota > 0 && _queueMaxSize != -1) {
+			int segmentSize = getIntProperty(prefix + "spill.segment.size", 4194304);
+			String key = prefix + "spill.dir";
+			String dir = AgentProperties.getProperty(key, Agent.getAgentHome() + "var/forwarding/" + name);
+			log.info(key + " uses value \"" + dir + "\".");
+			spill = new ResultSpill(new File(dir), segmentSize, spillQuota);
+		} else {
+			spill = null;
+		}
+
+		if (_transportIntervalMSec != -1) {
+			_scheduler.scheduleWithFixedDelay(_task, 0, _transportIntervalMSec, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static int getIntProperty(String key, int valueDefault) {
+		String str = AgentProperties.getProperty(key);
+		int value = valueDefault;
+		try {
+			value = Integer.parseInt(str);
+			if (value != -1 && value < 1) {
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException e) {
+			value = valueDefault;
+		} finally {
+			log.info(key + " uses value \"" + value + "\". (configuration = \"" + str + "\")");
+		}
+		return value;
+	}
+
+	private static long getLongProperty(String key, long valueDefault) {
+		String str = AgentProperties.getProperty(key);
+		long value = valueDefault;
+		try {
+			value = Long.parseLong(str);
+			if (value != -1 && value < 1) {
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException e) {
+			value = valueDefault;
+		} finally {
+			log.info(key + " uses value \"" + value + "\". (configuration = \"" + str + "\")");
+		}
+		return value;
+	}
+
+	/**
+	 * 監視結果を送信する
+	 * @param results 監視結果
+	 */
+	protected abstract void transport(List<T> results) throws Exception;
+
+	/**
+	 * 送信失敗時のログに出力する文字列
+	 */
+	protected abstract String toShortString(T result);
+
+	/**
+	 * キューが一杯で破棄する時のログに出力する文字列
+	 */
+	protected String toLongString(T result) {
+		return toShortString(result);
+	}
+
+	/**
+	 * 送信時のサイズの推定値(byte)
+	 */
+	protected abstract long estimateSize(T result);
+
+	/**
+	 * キューに入れる前に、XMLで使用できない文字を取り除く(送信を再試行するたびには行わない)
+	 */
+	protected abstract void sanitize(T result);
+
+	protected static int length(String str) {
+		return str == null ? 0 : str.length();
+	}
+
+	/**
+	 * 現在の1回に送信する件数
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * 応答時間の移動平均(ミリ秒)
+	 */
+	public long getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * 退避中の監視結果の数
+	 */
+	public int getSpillSize() {
+		return spillCount.get();
+	}
+
+	/**
+	 * 監視結果を送信キューに追加する。送信は待たない。
+	 * @param result 監視結果
+	 */
+	public void add(T result) {
+		sanitize(result);
+
+		if (spill != null && spillCount.get() > 0) {
+			// 退避中の監視結果より先に送信しないように、キューに空きがあっても退避する
+			synchronized (spillLock) {
+				if (spillCount.get() > 0) {
+					spill(result);
+					return;
+				}
+			}
+		}
+
+		int size = forwardSize.incrementAndGet();
+		if (_queueMaxSize != -1 && size > _queueMaxSize) {
+			forwardSize.decrementAndGet();
+			if (spill != null) {
+				synchronized (spillLock) {
+					spill(result);
+				}
+			} else {
+				log.warn("rejected new " + _name + " monitor's result. queue is full : " + toLongString(result));
+			}
+			return;
+		}
+
+		forwardQueue.offer(result);
+
+		long bytes = estimateSize(result);
+		long total = forwardBytes.addAndGet(bytes);
+
+		if (_transportIntervalSize != -1 && size % _transportIntervalSize == 0) {
+			_scheduler.submit(_task);
+		} else if (_transportIntervalBytes != -1 && (total - bytes) / _transportIntervalBytes != total / _transportIntervalBytes) {
+			_scheduler.submit(_task);
+		}
+	}
+
+	/**
+	 * 監視結果をファイルに退避する(spillLockを取得して呼び出す)
+	 */
+	private void spill(T result) {
+		try {
+			if (spill.append(encode(result))) {
+				spillCount.incrementAndGet();
+				return;
+			}
+			log.warn("rejected new " + _name + " monitor's result. queue and spill are full : " + toLongString(result));
+		} catch (Exception e) {
+			log.warn("rejected new " + _name + " monitor's result. failed to spill (" + e.getMessage() + ") : "
+					+ toLongString(result));
+		}
+	}
+
+	/**
+	 * 退避した監視結果をキューの空きの分だけキューに戻す
+	 */
+	private void refill() {
+		if (spill == null || spillCount.get() == 0) {
+			return;
+		}
+		int refilled = 0;
+		synchronized (spillLock) {
+			while (forwardSize.get() < _queueMaxSize) {
+				byte[] data = spill.poll();
+				if (data == null) {
+					break;
+				}
+				T result;
+				try {
+					result = decode(data);
+				} catch (JAXBException e) {
+					log.warn("failed to read spilled " + _name + " monitor's result : " + e.getMessage());
+					spillCount.decrementAndGet();
+					continue;
+				}
+				forwardSize.incrementAndGet();
+				forwardBytes.addAndGet(estimateSize(result));
+				forwardQueue.offer(result);
+				spillCount.decrementAndGet();
+				refilled++;
+			}
+		}
+		if (refilled > 0 && log.isDebugEnabled()) {
+			log.debug("refilled " + refilled + " " + _name + " monitor's results from spill. remaining=" + spillCount.get()
+					+ ", used=" + spill.getUsedBytes());
+		}
+	}
+
+	private synchronized JAXBContext getContext() throws JAXBException {
+		if (context == null) {
+			context = JAXBContext.newInstance(_resultClass);
+		}
+		return context;
+	}
+
+	private byte[] encode(T result) throws JAXBException, IOException {
+		Marshaller marshaller = getContext().createMarshaller();
+		marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		marshaller.marshal(new JAXBElement<T>(new QName(_resultClass.getSimpleName()), _resultClass, result), out);
+		return out.toByteArray();
+	}
+
+	private T decode(byte[] data) throws JAXBException {
+		return getContext().createUnmarshaller().unmarshal(new StreamSource(new ByteArrayInputStream(data)), _resultClass).getValue();
+	}
+
+	private void forward() {
+		while (forwarding.compareAndSet(false, true)) {
+			boolean retry = false;
+			try {
+				retry = forwardAll();
+			} catch (Exception e) {
+				log.warn("failed forwarding result.", e);
+			} finally {
+				forwarding.set(false);
+			}
+			// 送信中に追加された分は送信を依頼したスレッドが送信しないため、ここで確認する
+			if (retry || (forwardQueue.isEmpty() && spillCount.get() == 0)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 送信待ちの監視結果を全て送信する
+	 * @return 送信に失敗して次回に再送する場合はtrue
+	 */
+	private boolean forwardAll() {
+		while (true) {
+			if (transportTries.get() != 0 && System.currentTimeMillis() < nextTransportTime) {
+				// 再送間隔を待つ
+				return true;
+			}
+
+			refill();
+
+			// JAX-WSの一時ファイル肥大化(/tmp/jaxwsXXX)へのワークアラウンド実装(リクエストサイズに上限を設ける)
+			int transportSize = batchSize;
+			List<T> forwardListPart = new ArrayList<T>(Math.min(transportSize, forwardSize.get() + 1));
+			long partBytes = 0;
+			while (forwardListPart.size() < transportSize && !retryList.isEmpty()
+					&& (_transportMaxBytes == -1 || partBytes < _transportMaxBytes)) {
+				T result = retryList.removeFirst();
+				forwardListPart.add(result);
+				partBytes += estimateSize(result);
+			}
+			while (forwardListPart.size() < transportSize
+					&& (_transportMaxBytes == -1 || partBytes < _transportMaxBytes)) {
+				T result = forwardQueue.poll();
+				if (result == null) {
+					break;
+				}
+				forwardListPart.add(result);
+				partBytes += estimateSize(result);
+			}
+			if (forwardListPart.isEmpty()) {
+				return false;
+			}
+
+			long start = System.currentTimeMillis();
+			try {
+				transport(forwardListPart);
+				updateRtt(System.currentTimeMillis() - start);
+			} catch (Throwable t) {
+				// 送信に失敗した場合は件数を半分にする(SOAPのアーキテクチャ上、timeoutなどでメッセージの重複受信は回避できないが、その重複数を抑える）
+				batchSize = Math.max(1, batchSize / 2);
+				String msg = String.format("[%d/%d] failed forwarding %s monitor's result (%d of %d, batch=%d, rtt=%dms) : %s ...",
+						transportTries.get(), _transportMaxTries, _name, forwardListPart.size(), forwardSize.get(),
+						batchSize, rtt, toShortString(forwardListPart.get(0)));
+				if (log.isDebugEnabled()) {
+					log.warn(msg, t);
+				} else {
+					log.warn(msg);
+				}
+				if (transportTries.incrementAndGet() >= _transportMaxTries && _transportMaxTries != -1) {
+					msg = String.format("[%d/%d] give up forwarding %s monitor's result (%d of %d) : %s ...",
+							transportTries.get(), _transportMaxTries, _name, forwardListPart.size(), forwardSize.get(),
+							toShortString(forwardListPart.get(0)));
+					log.warn(msg, t);
+				} else {
+					// retry
+					retryList.addAll(0, forwardListPart);
+					nextTransportTime = System.currentTimeMillis() + getBackoff(transportTries.get());
+					return true;
+				}
+			}
+
+			forwardSize.addAndGet(-forwardListPart.size());
+			forwardBytes.addAndGet(-partBytes);
+			transportTries.set(0);
+		}
+	}
+
+	/**
+	 * 送信に成功した時の応答時間から移動平均と1回に送信する件数を更新する
+	 */
+	private void updateRtt(long sample) {
+		rtt = rtt == 0 ? sample : (rtt * 7 + sample) / 8;
+
+		int max = _transportMaxSize != -1 ? _transportMaxSize : Integer.MAX_VALUE;
+		if (_transportRttTargetMSec != -1 && sample > _transportRttTargetMSec) {
+			// 応答が遅い場合は件数を半分にする
+			batchSize = Math.max(1, batchSize / 2);
+		} else if (batchSize < max) {
+			batchSize = (int) Math.min((long) max, (long) batchSize + _transportIncrease);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("forwarded " + _name + " monitor's result : rtt=" + sample + "ms (avg " + rtt + "ms), batch=" + batchSize);
+		}
+	}
+
+	/**
+	 * 再送までの間隔(ミリ秒)を返す。
+	 * 送信間隔から失敗回数に応じて倍にしていき、上限に達した後は上限とする。
+	 * 複数のエージェントが同時に再送しないように、半分から全体の範囲でランダムに揺らす。
+	 */
+	private long getBackoff(int tries) {
+		long base = _transportIntervalMSec != -1 ? _transportIntervalMSec : 1000L;
+		long max = _transportBackoffMaxMSec != -1 ? _transportBackoffMaxMSec : Long.MAX_VALUE;
+		long backoff = base;
+		for (int i = 1; i < tries && backoff < max; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min(backoff, max);
+		return backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+	}
+
+}
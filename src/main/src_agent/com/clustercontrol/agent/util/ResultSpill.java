@@ -0,0 +1,239 @@
+/*
+
+Copyright (C) 2016 NTT DATA Corporation
+
+This program is free software; you can redistribute it and/or
+Modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation, version 2.
+
+This program is distributed in the hope that it will be
+useful, but WITHOUT ANY WARRANTY; without even the implied
+warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+PURPOSE.  See the GNU General Public License for more details.
+
+ */
+
+package com.clustercontrol.agent.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 送信キューに入りきらない監視結果を退避するファイル<BR>
+ *
+ * 一定サイズのセグメントファイルをメモリにマッピングして、[長さ(int)][データ]の順に追記する。
+ * 先頭のセグメントから記録順に読み出し、読み終えたセグメントは削除する。
+ * セグメントの合計サイズは上限(クォータ)を超えない。<BR>
+ *
+ * Windowsではマッピング中のファイルを削除できないため、削除できなかったセグメントは
+ * 合計サイズに含めたまま残し、次のセグメントの作成時に削除を再試行するか、そのまま再利用する。<BR>
+ *
+ * 送信が滞った間の一時的な退避先のため、fsyncは行わない。
+ * また、起動時に前回の退避ファイルが残っていた場合は削除する。
+ */
+public class ResultSpill {
+
+	private static Log log = LogFactory.getLog(ResultSpill.class);
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".spill";
+
+	private final File _dir;
+	private final int _segmentSize;
+	private final long _quota;
+
+	/** セグメント(記録順) */
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	/** セグメントの合計サイズ */
+	private long usedBytes = 0;
+
+	/** 退避中のデータ数 */
+	private int count = 0;
+
+	/** 読み終えたが削除できなかったセグメント */
+	private final LinkedList<Segment> released = new LinkedList<Segment>();
+
+	/** 次に作成するセグメントの番号 */
+	private long nextSegmentNo = 0;
+
+	private static class Segment {
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int writePos = 0;
+		private int readPos = 0;
+
+		private Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param dir セグメントファイルを置くディレクトリ
+	 * @param segmentSize セグメントのサイズ(byte)
+	 * @param quota セグメントの合計サイズの上限(byte)
+	 */
+	public ResultSpill(File dir, int segmentSize, long quota) {
+		_dir = dir;
+		_segmentSize = segmentSize;
+		_quota = quota;
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+					log.info("ResultSpill() : delete " + file.getAbsolutePath());
+					if (!file.delete()) {
+						log.warn("ResultSpill() : failed to delete " + file.getAbsolutePath());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * データを退避する
+	 * @param data データ
+	 * @return 退避した場合はtrue、上限を超える場合はfalse
+	 */
+	public synchronized boolean append(byte[] data) throws IOException {
+		int need = 4 + data.length;
+		Segment tail = segments.isEmpty() ? null : segments.getLast();
+		if (tail == null || tail.buffer.capacity() - tail.writePos < need) {
+			tail = newSegment(Math.max(_segmentSize, need));
+			if (tail == null) {
+				return false;
+			}
+		}
+		tail.buffer.position(tail.writePos);
+		tail.buffer.putInt(data.length);
+		tail.buffer.put(data);
+		tail.writePos += need;
+		count++;
+		return true;
+	}
+
+	/**
+	 * 最も古いデータを取り出す
+	 * @return データ(退避中のデータがない場合はnull)
+	 */
+	public synchronized byte[] poll() {
+		while (!segments.isEmpty()) {
+			Segment head = segments.getFirst();
+			if (head.readPos < head.writePos) {
+				head.buffer.position(head.readPos);
+				int length = head.buffer.getInt();
+				byte[] data = new byte[length];
+				head.buffer.get(data);
+				head.readPos += 4 + length;
+				count--;
+				return data;
+			}
+			if (head == segments.getLast()) {
+				// 書き込み中のセグメントは先頭から使い直す
+				head.writePos = 0;
+				head.readPos = 0;
+				return null;
+			}
+			removeHead();
+		}
+		return null;
+	}
+
+	/**
+	 * 退避中のデータがないかどうか
+	 */
+	public synchronized boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * 退避中のデータ数
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * セグメントの合計サイズ(byte)
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	private Segment newSegment(int size) throws IOException {
+		Segment reuse = retryDelete(size);
+		if (reuse != null) {
+			reuse.writePos = 0;
+			reuse.readPos = 0;
+			segments.addLast(reuse);
+			log.debug("newSegment() : reuse " + reuse.file.getAbsolutePath() + ", used=" + usedBytes);
+			return reuse;
+		}
+		if (usedBytes + size > _quota) {
+			return null;
+		}
+		if (!_dir.isDirectory() && !_dir.mkdirs()) {
+			throw new IOException("failed to create directory : " + _dir.getAbsolutePath());
+		}
+		File file = new File(_dir, SEGMENT_PREFIX + (nextSegmentNo++) + SEGMENT_SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer buffer;
+		try {
+			raf.setLength(size);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// マッピングはファイルを閉じた後も有効
+			raf.close();
+		}
+		Segment segment = new Segment(file, buffer);
+		segments.addLast(segment);
+		usedBytes += size;
+		log.debug("newSegment() : " + file.getAbsolutePath() + ", used=" + usedBytes);
+		return segment;
+	}
+
+	private void removeHead() {
+		Segment head = segments.removeFirst();
+		if (head.file.delete()) {
+			usedBytes -= head.buffer.capacity();
+		} else {
+			// Windowsではマッピングが解放されるまで削除できないため、合計サイズに含めたまま後で再試行する
+			log.info("removeHead() : failed to delete " + head.file.getAbsolutePath() + ". retry later");
+			released.add(head);
+		}
+		log.debug("removeHead() : " + head.file.getAbsolutePath() + ", used=" + usedBytes);
+	}
+
+	/**
+	 * 削除できなかったセグメントの削除を再試行する
+	 * @param size 作成するセグメントのサイズ
+	 * @return 削除できず、sizeを書き込めるセグメント(再利用する)。ない場合はnull
+	 */
+	private Segment retryDelete(int size) {
+		Segment reuse = null;
+		Iterator<Segment> it = released.iterator();
+		while (it.hasNext()) {
+			Segment segment = it.next();
+			if (segment.file.delete()) {
+				usedBytes -= segment.buffer.capacity();
+				it.remove();
+				log.debug("retryDelete() : " + segment.file.getAbsolutePath() + ", used=" + usedBytes);
+			} else if (reuse == null && segment.buffer.capacity() >= size) {
+				reuse = segment;
+				it.remove();
+			}
+		}
+		return reuse;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+
+ Copyright (C) 2016 NTT DATA Corporation
+
+ This program is free software; you can redistribute it and/or
+ Modify it under the terms of the GNU General Public License
+ as published by the Free Software Foundation, version 2.
+
+ This program is distributed in the hope that it will be
+ useful, but WITHOUT ANY WARRANTY; without even the implied
+ warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+ PURPOSE.  See the GNU General Public License for more details.
+
+ */
+package com.clustercontrol.agent.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 複数のリテラル文字列を1回の走査で検索するオートマトン(Aho-Corasick法)<BR>
+ *
+ * 英字の大文字・小文字(US-ASCIIのみ)は区別しない。
+ * そのため、検索結果は大文字・小文字を区別するリテラルに対しては候補(上位集合)となる。<BR>
+ *
+ * バイト列を検索する場合は、リテラルも1バイトを1文字(ISO-8859-1)とみなした文字列で登録する。
+ */
+public class StringLiteralAutomaton {
+
+	/** 1バイトで表せる範囲(ISO-8859-1)は遷移表で持つ */
+	private static final int TABLE_SIZE = 256;
+
+	/** ノードごとの1バイトの範囲の遷移先(失敗遷移を展開済み) */
+	private final int[][] m_tableGoto;
+
+	/** ノードごとの1バイトの範囲以外の遷移先(トライ木の辺のみ) */
+	private final List<Map<Character, Integer>> m_otherGoto;
+
+	/** ノードごとの失敗遷移先 */
+	private final int[] m_fail;
+
+	/** ノードごとの出力(失敗遷移先の出力を含むリテラル番号) */
+	private final int[][] m_output;
+
+	/** 登録したリテラル数 */
+	private final int m_literalCount;
+
+	/**
+	 * オートマトンを構築する
+	 * @param literals 検索するリテラル(空文字列は不可)
+	 */
+	public StringLiteralAutomaton(List<String> literals) {
+		m_literalCount = literals.size();
+
+		// トライ木を作る
+		ArrayList<int[]> tableGoto = new ArrayList<int[]>();
+		ArrayList<Map<Character, Integer>> otherGoto = new ArrayList<Map<Character, Integer>>();
+		ArrayList<List<Integer>> output = new ArrayList<List<Integer>>();
+		newNode(tableGoto, otherGoto, output);
+
+		for (int i = 0; i < literals.size(); i++) {
+			String literal = literals.get(i);
+			if (literal == null || literal.length() == 0) {
+				throw new IllegalArgumentException("empty literal : index=" + i);
+			}
+			int node = 0;
+			for (int j = 0; j < literal.length(); j++) {
+				char c = toLower(literal.charAt(j));
+				int next;
+				if (c < TABLE_SIZE) {
+					next = tableGoto.get(node)[c];
+					if (next <= 0) {
+						next = newNode(tableGoto, otherGoto, output);
+						tableGoto.get(node)[c] = next;
+					}
+				} else {
+					Integer n = otherGoto.get(node).get(c);
+					if (n == null) {
+						n = newNode(tableGoto, otherGoto, output);
+						otherGoto.get(node).put(c, n);
+					}
+					next = n;
+				}
+				node = next;
+			}
+			output.get(node).add(i);
+		}
+
+		// 幅優先で失敗遷移を求め、1バイトの範囲の遷移は失敗遷移を展開しておく
+		int size = tableGoto.size();
+		int[] fail = new int[size];
+		int[] rootGoto = tableGoto.get(0);
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int c = 0; c < TABLE_SIZE; c++) {
+			if (rootGoto[c] > 0) {
+				fail[rootGoto[c]] = 0;
+				queue.add(rootGoto[c]);
+			} else {
+				rootGoto[c] = 0;
+			}
+		}
+		for (Integer child : otherGoto.get(0).values()) {
+			fail[child] = 0;
+			queue.add(child);
+		}
+		while (!queue.isEmpty()) {
+			int node = queue.removeFirst();
+			output.get(node).addAll(output.get(fail[node]));
+
+			int[] nodeGoto = tableGoto.get(node);
+			int[] failGoto = tableGoto.get(fail[node]);
+			for (int c = 0; c < TABLE_SIZE; c++) {
+				int child = nodeGoto[c];
+				if (child > 0) {
+					fail[child] = failGoto[c];
+					queue.add(child);
+				} else {
+					nodeGoto[c] = failGoto[c];
+				}
+			}
+			for (Map.Entry<Character, Integer> entry : otherGoto.get(node).entrySet()) {
+				int child = entry.getValue();
+				fail[child] = nextOther(otherGoto, fail, fail[node], entry.getKey());
+				queue.add(child);
+			}
+		}
+
+		m_tableGoto = tableGoto.toArray(new int[size][]);
+		m_otherGoto = otherGoto;
+		m_fail = fail;
+		m_output = new int[size][];
+		for (int i = 0; i < size; i++) {
+			List<Integer> list = output.get(i);
+			m_output[i] = new int[list.size()];
+			for (int j = 0; j < list.size(); j++) {
+				m_output[i][j] = list.get(j);
+			}
+		}
+	}
+
+	private static int newNode(List<int[]> tableGoto, List<Map<Character, Integer>> otherGoto,
+			List<List<Integer>> output) {
+		tableGoto.add(new int[TABLE_SIZE]);
+		otherGoto.add(new HashMap<Character, Integer>());
+		output.add(new ArrayList<Integer>());
+		return tableGoto.size() - 1;
+	}
+
+	/**
+	 * 1バイトの範囲以外の文字の遷移先を失敗遷移をたどって求める
+	 */
+	private static int nextOther(List<Map<Character, Integer>> otherGoto, int[] fail, int node, char c) {
+		while (true) {
+			Integer next = otherGoto.get(node).get(c);
+			if (next != null) {
+				return next;
+			}
+			if (node == 0) {
+				return 0;
+			}
+			node = fail[node];
+		}
+	}
+
+	private static char toLower(char c) {
+		if ('A' <= c && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		return c;
+	}
+
+	/**
+	 * 登録したリテラル数を返す
+	 */
+	public int getLiteralCount() {
+		return m_literalCount;
+	}
+
+	/**
+	 * 文字列に含まれるリテラルを検索する
+	 * @param text 検索対象の文字列
+	 * @param found 含まれるリテラルの番号の位置にtrueを設定する(リテラル数以上の長さが必要)
+	 * @return 見つかったリテラルの種類数
+	 */
+	public int search(CharSequence text, boolean[] found) {
+		int count = 0;
+		int node = 0;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = toLower(text.charAt(i));
+			if (c < TABLE_SIZE) {
+				node = m_tableGoto[node][c];
+			} else {
+				node = nextOther(m_otherGoto, m_fail, node, c);
+			}
+			int[] out = m_output[node];
+			for (int j = 0; j < out.length; j++) {
+				if (!found[out[j]]) {
+					found[out[j]] = true;
+					count++;
+				}
+			}
+			if (count == m_literalCount) {
+				break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * バイト列にいずれかのリテラルが含まれるかどうか
+	 * @param buf 検索対象のバイト列(位置は絶対位置で指定する)
+	 * @param start 開始位置
+	 * @param end 終了位置(この位置は含まない)
+	 * @return いずれかのリテラルが含まれる場合はtrue
+	 */
+	public boolean containsAny(ByteBuffer buf, int start, int end) {
+		int node = 0;
+		for (int i = start; i < end; i++) {
+			node = m_tableGoto[node][toLower((char) (buf.get(i) & 0xff))];
+			if (m_output[node].length > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+
+Copyright (C) 2016 NTT DATA Corporation
+
+This program is free software; you can redistribute it and/or
+Modify it under the terms of the GNU General Public License
+as published by the Free Software Foundation, version 2.
+
+This program is distributed in the hope that it will be
+useful, but WITHOUT ANY WARRANTY; without even the implied
+warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+PURPOSE.  See the GNU General Public License for more details.
+
+ */
+
+package com.clustercontrol.agent.util;
+
+import com.clustercontrol.util.XMLUtil;
+import com.clustercontrol.ws.agent.OutputBasicInfo;
+import com.clustercontrol.ws.agent.WinEventResultDTO;
+import com.clustercontrol.ws.jobmanagement.RunResultInfo;
+import com.clustercontrol.ws.monitor.CommandResultDTO;
+import com.clustercontrol.ws.monitor.LogfileResultDTO;
+
+/**
+ * マネージャに送信する文字列からXMLで使用できない文字を取り除くクラス<BR>
+ *
+ * 送信する文字列のほとんどは置換が不要なため、先に1回走査して確認し、
+ * 置換が不要な場合は元の文字列をそのまま返す(新しい文字列を作らない)。
+ * 置換が必要な場合のみXMLUtil.ignoreInvalidString()で置換するため、置換の方法(common.invalid.char.replace)は従来通り。<BR>
+ *
+ * 監視結果をキューに入れる時点で1回だけ呼び出し、送信を再試行するたびには呼び出さない。
+ */
+public class XMLSanitizer {
+
+	/** Invalidな文字を置換する場合の置換文字のキー */
+	public static final String MESSAGE_REPLACE_METHOD_KEY = "common.invalid.char.replace";
+	/** Invalidな文字を置換する場合の置換文字のキー */
+	public static final String MESSAGE_REPLACE_CHAR_KEY = "common.invalid.char.replace.to";
+
+	static {
+		boolean invalidCharReplace = Boolean.parseBoolean(AgentProperties.getProperty(MESSAGE_REPLACE_METHOD_KEY, "false"));
+		XMLUtil.setReplace(invalidCharReplace);
+
+		String replaceCharString = AgentProperties.getProperty(MESSAGE_REPLACE_CHAR_KEY, " ");
+		if(replaceCharString != null){
+			XMLUtil.setReplaceChar(replaceCharString);
+		}
+	}
+
+	/**
+	 * XMLで使用できない文字を取り除く(または置換する)
+	 * @param str 文字列
+	 * @return 置換が不要な場合は引数の文字列そのもの
+	 */
+	public static String sanitize(String str) {
+		if (str == null || isValid(str)) {
+			return str;
+		}
+		return XMLUtil.ignoreInvalidString(str);
+	}
+
+	public static void sanitize(RunResultInfo info) {
+		info.setMessage(sanitize(info.getMessage()));
+		info.setErrorMessage(sanitize(info.getErrorMessage()));
+	}
+
+	public static void sanitize(OutputBasicInfo info) {
+		info.setMessage(sanitize(info.getMessage()));
+		info.setMessageOrg(sanitize(info.getMessageOrg()));
+	}
+
+	public static void sanitize(CommandResultDTO result) {
+		result.setStderr(sanitize(result.getStderr()));
+		result.setStdout(sanitize(result.getStdout()));
+	}
+
+	public static void sanitize(LogfileResultDTO result) {
+		result.setMessage(sanitize(result.getMessage()));
+		if (result.getMsgInfo() != null) {
+			result.getMsgInfo().setMessage(sanitize(result.getMsgInfo().getMessage()));
+		}
+	}
+
+	public static void sanitize(WinEventResultDTO result) {
+		result.setMessage(sanitize(result.getMessage()));
+		if (result.getMsgInfo() != null) {
+			result.getMsgInfo().setMessage(sanitize(result.getMsgInfo().getMessage()));
+		}
+	}
+
+	/**
+	 * 置換が不要かどうか。
+	 * サロゲートペアはXMLUtilの判定に任せるため、ここでは置換が必要とみなす。
+	 */
+	private static boolean isValid(String str) {
+		int length = str.length();
+		for (int i = 0; i < length; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x20) {
+				if (c <= 0xD7FF || (c >= 0xE000 && c <= 0xFFFD)) {
+					continue;
+				}
+				return false;
+			}
+			if (c != '\t' && c != '\n' && c != '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+}